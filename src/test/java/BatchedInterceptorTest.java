@@ -0,0 +1,433 @@
+import static com.github.fge.lambdas.Throwing.consumer;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+
+import com.github.fge.lambdas.Throwing;
+import com.google.common.collect.Maps;
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Coalesces concurrent calls to a single key @Batched method into one call to its bulk method, so a
+ * chatty lookup pays its per call overhead once per batch instead of once per key.
+ */
+public class BatchedInterceptorTest {
+  @Target(ElementType.METHOD)
+  @Retention(RetentionPolicy.RUNTIME)
+  public static @interface Batched {
+    /**
+     * The method on the same type that looks up many keys at once.  It takes a List of keys and
+     * returns a Map from key to result; keys missing from the map get null.
+     */
+    String bulkMethod();
+
+    /**
+     * The most keys sent in one bulk call.  The call that fills a batch sends it.
+     */
+    int maxSize() default 64;
+
+    /**
+     * How long the first call in a batch waits for others to join it before the batch is sent.
+     */
+    long maxWaitMillis() default 5;
+  };
+
+  @MethodInterceptorTest.Tracked
+  public static class LookupMethods {
+    List<List<Integer>> bulkCalls = Collections.synchronizedList(new ArrayList<>());
+
+    @Batched(bulkMethod = "squares", maxSize = 4, maxWaitMillis = 50)
+    public String square(Integer value) {
+      return squares(Collections.singletonList(value)).get(value);
+    }
+
+    @Batched(bulkMethod = "squares", maxSize = 4, maxWaitMillis = 10)
+    public String quickSquare(Integer value) {
+      return squares(Collections.singletonList(value)).get(value);
+    }
+
+    @Batched(bulkMethod = "slowSquares", maxSize = 4, maxWaitMillis = 1)
+    public String slowSquare(Integer value) {
+      return slowSquares(Collections.singletonList(value)).get(value);
+    }
+
+    public Map<Integer, String> slowSquares(List<Integer> values) {
+      try {
+        MILLISECONDS.sleep(200);
+      } catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+      return squares(values);
+    }
+
+    public Map<Integer, String> squares(List<Integer> values) {
+      bulkCalls.add(values);
+      Map<Integer, String> squares = Maps.newHashMap();
+      for( Integer value : values ) {
+        if( value < 0 ) {
+          throw new IllegalArgumentException("no square for "+value);
+        }
+        squares.put(value, String.valueOf(value * value));
+      }
+      return squares;
+    }
+  }
+
+  /**
+   * Binds a BatchingInterceptor to each @Batched method of the given types.  The module owns two
+   * sets of daemon threads: one scheduler thread that times out all of its batches, and a pool
+   * that timed out batches are handed to for their bulk calls, so a slow bulk method never delays
+   * the timeouts of the others.  close() sends the batches still waiting and stops both.
+   */
+  public static class BatchedModule extends MethodInterceptorTest.TrackedMethodsModule implements AutoCloseable {
+    private MethodInterceptorTest.Registry registry;
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "batched-timeout"));
+    private ExecutorService sender = Executors.newCachedThreadPool(r -> daemon(r, "batched-send"));
+    private volatile long maxWaitMillis;
+
+    public BatchedModule(MethodInterceptorTest.Registry registry, Class<?>... types) {
+      super(types);
+      this.registry = registry;
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+      Thread thread = new Thread(r, name);
+      thread.setDaemon(true);
+      return thread;
+    }
+
+    /**
+     * Waits for the batches already waiting to time out and be handed over, then shuts down the
+     * module's threads.  Bulk calls in flight run to completion.
+     */
+    @Override
+    public void close() {
+      scheduler.shutdown();
+      try {
+        scheduler.awaitTermination(maxWaitMillis + 1000, MILLISECONDS);
+      } catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        scheduler.shutdownNow();
+      }
+      sender.shutdown();
+    }
+
+    @Override
+    protected void configure(Class<?> type, Method method) {
+      Batched batched = method.getAnnotation(Batched.class);
+      if( batched == null ) {
+        return;
+      }
+      if( method.getParameterCount() != 1 ) {
+        addError("@Batched methods take a single key, %s takes %s", method, method.getParameterCount());
+        return;
+      }
+      if( batched.maxSize() < 1 ) {
+        addError("maxSize must be at least 1 on %s", method);
+        return;
+      }
+      Method bulkMethod;
+      try {
+        bulkMethod = type.getMethod(batched.bulkMethod(), List.class);
+      } catch( NoSuchMethodException e ) {
+        addError("%s has no bulk method %s(List) for %s", type, batched.bulkMethod(), method);
+        return;
+      }
+      if( !Map.class.isAssignableFrom(bulkMethod.getReturnType()) ) {
+        addError("bulk method %s must return a Map", bulkMethod);
+        return;
+      }
+      maxWaitMillis = Math.max(maxWaitMillis, batched.maxWaitMillis());
+      bindInterceptor(type, method, new BatchingInterceptor(registry, method, bulkMethod, batched, scheduler, sender));
+    }
+  }
+
+  /**
+   * Parks each call in a batch for its target object and sends the batch to the bulk method when
+   * it is full or its first call has waited maxWaitMillis, whichever comes first.  A full batch is
+   * sent on the thread that filled it; the scheduler hands a timed out one to the sender.  Each
+   * caller waits on its own future and gets its key's result, or the bulk method's exception.
+   * Batches are kept in stripes by the target's identity hash, each with its own lock, so callers
+   * only contend with calls on targets in the same stripe.
+   *
+   * Batch sizes are recorded in the registry's histogram "&lt;method&gt;.batchSize" and how long
+   * each call waited for its batch to be sent in its timer "&lt;method&gt;.batchWait".
+   *
+   * A call that would start a batch after the scheduler has shut down, such as after the module is
+   * closed, throws the scheduler's RejectedExecutionException rather than waiting for a timeout
+   * that will never come.
+   */
+  public static class BatchingInterceptor implements MethodInterceptor {
+    static class Call {
+      Object key;
+      long startTime = System.nanoTime();
+      CompletableFuture<Object> result = new CompletableFuture<>();
+
+      Call(Object key) {
+        this.key = key;
+      }
+    }
+
+    static class Batch {
+      Object target;
+      List<Call> calls = new ArrayList<>();
+      ScheduledFuture<?> timeout;
+
+      Batch(Object target) {
+        this.target = target;
+      }
+    }
+
+    /** The batches of the targets whose identity hash falls in this stripe, guarded by the stripe. */
+    static class Stripe {
+      Map<Object, Batch> batches = new IdentityHashMap<>();
+    }
+
+    static final int STRIPES = 16;
+
+    private Method bulkMethod;
+    private int maxSize;
+    private long maxWaitNanos;
+    private ScheduledExecutorService scheduler;
+    private Executor sender;
+    private MethodInterceptorTest.Histogram batchSizes;
+    private MethodInterceptorTest.Timer batchWaits;
+    private Stripe[] stripes = new Stripe[STRIPES];
+
+    public BatchingInterceptor(MethodInterceptorTest.Registry registry, Method method, Method bulkMethod, Batched batched, ScheduledExecutorService scheduler, Executor sender) {
+      String name = MethodInterceptorTest.Registry.name(method);
+      this.bulkMethod = bulkMethod;
+      this.maxSize = batched.maxSize();
+      this.maxWaitNanos = MILLISECONDS.toNanos(batched.maxWaitMillis());
+      this.scheduler = scheduler;
+      this.sender = sender;
+      for( int i = 0; i < STRIPES; i++ ) {
+        stripes[i] = new Stripe();
+      }
+      this.batchSizes = registry.histogram(name + ".batchSize");
+      this.batchWaits = registry.timer(name + ".batchWait");
+    }
+
+    @Override
+    public Object invoke(MethodInvocation i) throws Throwable {
+      Call call = new Call(i.getArguments()[0]);
+      Batch full = null;
+      Stripe stripe = stripe(i.getThis());
+      synchronized( stripe ) {
+        Map<Object, Batch> batches = stripe.batches;
+        Batch batch = batches.get(i.getThis());
+        if( batch == null ) {
+          Batch created = batch = new Batch(i.getThis());
+          // scheduled before it is shared, so a rejected schedule leaves no batch behind; the
+          // timeout needs this stripe's lock, so it cannot run before the batch is in the map
+          created.timeout = scheduler.schedule(() -> timeout(created), maxWaitNanos, NANOSECONDS);
+          batches.put(created.target, created);
+        }
+        batch.calls.add(call);
+        if( batch.calls.size() >= maxSize ) {
+          batches.remove(batch.target);
+          full = batch;
+        }
+      }
+      if( full != null ) {
+        full.timeout.cancel(false);
+        send(full);
+      }
+      try {
+        return call.result.get();
+      } catch( ExecutionException e ) {
+        throw e.getCause();
+      }
+    }
+
+    private Stripe stripe(Object target) {
+      return stripes[System.identityHashCode(target) & (STRIPES - 1)];
+    }
+
+    private void timeout(Batch batch) {
+      Stripe stripe = stripe(batch.target);
+      synchronized( stripe ) {
+        if( stripe.batches.get(batch.target) != batch ) {
+          return;
+        }
+        stripe.batches.remove(batch.target);
+      }
+      sender.execute(() -> send(batch));
+    }
+
+    private void send(Batch batch) {
+      long sendTime = System.nanoTime();
+      batchSizes.record(batch.calls.size());
+      Set<Object> keys = new LinkedHashSet<>();
+      for( Call call : batch.calls ) {
+        batchWaits.record(sendTime - call.startTime);
+        keys.add(call.key);
+      }
+      try {
+        Map<?, ?> results = (Map<?, ?>)bulkMethod.invoke(batch.target, new ArrayList<>(keys));
+        for( Call call : batch.calls ) {
+          call.result.complete(results.get(call.key));
+        }
+      } catch( Throwable t ) {
+        Throwable cause = t instanceof InvocationTargetException ? t.getCause() : t;
+        for( Call call : batch.calls ) {
+          call.result.completeExceptionally(cause);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void batchesConcurrentCalls() throws Exception {
+    MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+    try( BatchedModule module = new BatchedModule(registry, LookupMethods.class) ) {
+      Injector injector = Guice.createInjector(module);
+      String square = MethodInterceptorTest.Registry.name(LookupMethods.class.getMethod("square", Integer.class));
+      LookupMethods m = injector.getInstance(LookupMethods.class);
+      CountDownLatch start = new CountDownLatch(1);
+
+      List<Thread> threadList = range(0, 8)
+        .mapToObj(i -> new Thread(Throwing.runnable(() -> {
+          start.await();
+          assertThat(m.square(i), equalTo(String.valueOf(i * i)));
+        })))
+        .collect(toList());
+
+      threadList.stream().forEach(Thread::start);
+      start.countDown();
+      threadList.stream().forEach(consumer(Thread::join));
+
+      assertThat(m.bulkCalls.size(), lessThan(8));
+      assertThat(m.bulkCalls.stream().mapToInt(List::size).sum(), equalTo(8));
+      m.bulkCalls.forEach(keys -> assertThat(keys.size(), lessThanOrEqualTo(4)));
+      assertThat(registry.getHistogram(square + ".batchSize").get().getCount(), equalTo((long)m.bulkCalls.size()));
+      assertThat(registry.getTimer(square + ".batchWait").get().times.getCount(), equalTo(8L));
+    }
+  }
+
+  @Test
+  public void loneCallIsSentAfterMaxWait() throws Exception {
+    MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+    try( BatchedModule module = new BatchedModule(registry, LookupMethods.class) ) {
+      Injector injector = Guice.createInjector(module);
+      String quickSquare = MethodInterceptorTest.Registry.name(LookupMethods.class.getMethod("quickSquare", Integer.class));
+      LookupMethods m = injector.getInstance(LookupMethods.class);
+
+      assertThat(m.quickSquare(3), equalTo("9"));
+      assertThat(m.quickSquare(4), equalTo("16"));
+
+      assertThat(m.bulkCalls.size(), equalTo(2));
+      assertThat(registry.getHistogram(quickSquare + ".batchSize").get().getMax(), equalTo(1L));
+      assertThat(registry.getTimer(quickSquare + ".batchWait").get().times.getMax(), greaterThanOrEqualTo(MILLISECONDS.toNanos(10)));
+    }
+  }
+
+  @Test
+  public void failuresReachEveryCaller() throws Exception {
+    try( BatchedModule module = new BatchedModule(new MethodInterceptorTest.Registry(), LookupMethods.class) ) {
+      Injector injector = Guice.createInjector(module);
+      LookupMethods m = injector.getInstance(LookupMethods.class);
+      List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+      List<Thread> threadList = range(-2, 2)
+        .mapToObj(i -> new Thread(() -> {
+          try {
+            m.square(i);
+          } catch( Throwable t ) {
+            failures.add(t);
+          }
+        }))
+        .collect(toList());
+
+      threadList.stream().forEach(Thread::start);
+      threadList.stream().forEach(consumer(Thread::join));
+
+      assertThat(failures.size(), greaterThanOrEqualTo(2));
+      failures.forEach(t -> assertThat(t, instanceOf(IllegalArgumentException.class)));
+    }
+  }
+
+  @Test
+  public void slowBulkCallDoesNotDelayOtherTimeouts() throws Exception {
+    try( BatchedModule module = new BatchedModule(new MethodInterceptorTest.Registry(), LookupMethods.class) ) {
+      Injector injector = Guice.createInjector(module);
+      LookupMethods m = injector.getInstance(LookupMethods.class);
+
+      Thread slow = new Thread(() -> m.slowSquare(2));
+      slow.start();
+      MILLISECONDS.sleep(20);
+
+      long startTime = System.nanoTime();
+      assertThat(m.quickSquare(3), equalTo("9"));
+      assertThat(NANOSECONDS.toMillis(System.nanoTime() - startTime), lessThan(150L));
+      slow.join();
+    }
+  }
+
+  @Test
+  public void rejectsCallsOnceClosed() throws Exception {
+    BatchedModule module = new BatchedModule(new MethodInterceptorTest.Registry(), LookupMethods.class);
+    LookupMethods m = Guice.createInjector(module).getInstance(LookupMethods.class);
+    module.close();
+
+    for( int i = 0; i < 2; i++ ) {
+      try {
+        m.quickSquare(i);
+        throw new AssertionError("expected the call to be rejected");
+      } catch( RejectedExecutionException expected ) {
+      }
+    }
+    assertThat(m.bulkCalls.size(), equalTo(0));
+  }
+
+  @Test
+  public void rejectsMissingBulkMethod() {
+    @MethodInterceptorTest.Tracked
+    class BrokenMethods {
+      @Batched(bulkMethod = "missing")
+      public String lookup(Integer key) { return null; }
+    }
+    try {
+      Guice.createInjector(new BatchedModule(new MethodInterceptorTest.Registry(), BrokenMethods.class));
+      throw new AssertionError("expected a CreationException");
+    } catch( CreationException expected ) {
+      assertThat(expected.getErrorMessages().size(), equalTo(1));
+    }
+  }
+}
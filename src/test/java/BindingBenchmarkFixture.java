@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import benchmarks.BindingBenchmark;
+
+/**
+ * Builds the subjects of benchmarks.BindingBenchmark.
+ */
+public class BindingBenchmarkFixture implements BindingBenchmark.Fixture {
+  static final String JSON = "[\"one\", \"two\", \"three\"]";
+
+  /** Written by the handlers; BindingBenchmark gives each thread its own fixture. */
+  int size;
+
+  @Override
+  public int newMapper() {
+    try( Reader in = new StringReader(JSON) ) {
+      List<String> values = new ObjectMapper().readValue(in, new TypeReference<List<String>>(){});
+      return values.size();
+    } catch( IOException ioe ) {
+      throw new UncheckedIOException("could not handle resource.", ioe);
+    }
+  }
+
+  @Override
+  public int context() {
+    new StrategyPatternTest.Context<List<String>>(new TypeReference<List<String>>(){},
+      () -> new StringReader(JSON), values -> size = values.size()).execute();
+    return size;
+  }
+
+  @Override
+  public int handlerTemplate() {
+    new TemplateMethodTest.HandlerTemplate<List<String>>(new TypeReference<List<String>>(){}) {
+      @Override
+      public Reader getReader() {
+        return new StringReader(JSON);
+      }
+
+      @Override
+      public void handle(List<String> values) {
+        size = values.size();
+      }
+    }.execute();
+    return size;
+  }
+}
@@ -0,0 +1,487 @@
+import static com.github.fge.lambdas.Throwing.consumer;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Caps how many calls can be in a @Bulkhead method at once, so one slow dependency can only tie
+ * up that method's share of the threads.
+ */
+public class BulkheadInterceptorTest {
+  @Target(ElementType.METHOD)
+  @Retention(RetentionPolicy.RUNTIME)
+  public static @interface Bulkhead {
+    /**
+     * The most calls allowed in the method at once.  With adaptive limits, the ceiling of the limit.
+     */
+    int maxConcurrent() default 10;
+
+    /**
+     * How many calls may wait for a free place before calls are turned away.  0 fails fast.
+     */
+    int maxWaiting() default 0;
+
+    /**
+     * How long a waiting call waits before it is turned away.
+     */
+    long maxWaitMillis() default 0;
+
+    /**
+     * Adjusts the limit between 1 and maxConcurrent from the latency the method shows.
+     */
+    boolean adaptive() default false;
+  };
+
+  /**
+   * Thrown instead of calling the method when the bulkhead is full.
+   */
+  public static class BulkheadFullException extends RuntimeException {
+    public BulkheadFullException(String message) {
+      super(message);
+    }
+
+    public BulkheadFullException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  /**
+   * A concurrency limit.  Callers take a place with a compare and set while there is room, and the
+   * lock is only taken by calls that have to wait and by releases that have a waiter to wake.
+   *
+   * An adaptive limiter is additive increase, multiplicative decrease over windows of WINDOW calls.
+   * It compares each window's mean latency to a baseline, shrinking the limit by a tenth when the
+   * window is more than TOLERANCE times slower, and growing it by one when the window was fast and
+   * reached at least half the limit.  The baseline drops straight to a faster window but only drifts
+   * a tenth of the way towards a slower one, so it follows a dependency that has got slower for good
+   * without letting ordinary jitter pull the limit down.  Windows are gathered with atomics and
+   * whichever release completes one adapts the limit, so releasing never blocks.
+   */
+  public static class Limiter {
+    static final int WINDOW = 20;
+    static final double TOLERANCE = 2.0d;
+    static final double BACKOFF = 0.9d;
+    static final double BASELINE_DRIFT = 0.1d;
+
+    private AtomicInteger inFlight = new AtomicInteger();
+    private AtomicInteger waiting = new AtomicInteger();
+    private volatile int limit;
+    private int maxLimit;
+    private int maxWaiting;
+    private long maxWaitNanos;
+    private boolean adaptive;
+    private AtomicInteger samples = new AtomicInteger();
+    private AtomicLong latencySum = new AtomicLong();
+    private AtomicInteger peakInFlight = new AtomicInteger();
+    private AtomicBoolean adapting = new AtomicBoolean();
+    private volatile double baseline;
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition released = lock.newCondition();
+
+    public Limiter(int maxLimit, int maxWaiting, long maxWait, TimeUnit unit, boolean adaptive) {
+      this.limit = maxLimit;
+      this.maxLimit = maxLimit;
+      this.maxWaiting = maxWaiting;
+      this.maxWaitNanos = unit.toNanos(maxWait);
+      this.adaptive = adaptive;
+    }
+
+    public boolean acquire() throws InterruptedException {
+      if( tryAcquire() ) {
+        return true;
+      }
+      if( waiting.incrementAndGet() > maxWaiting ) {
+        waiting.decrementAndGet();
+        return false;
+      }
+      lock.lock();
+      try {
+        long remaining = maxWaitNanos;
+        while( !tryAcquire() ) {
+          if( remaining <= 0 ) {
+            return false;
+          }
+          remaining = released.awaitNanos(remaining);
+        }
+        return true;
+      } finally {
+        lock.unlock();
+        waiting.decrementAndGet();
+      }
+    }
+
+    private boolean tryAcquire() {
+      for( int current = inFlight.get(); current < limit; current = inFlight.get() ) {
+        if( inFlight.compareAndSet(current, current + 1) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public void release(long latencyNanos) {
+      int before = inFlight.getAndDecrement();
+      if( adaptive ) {
+        latencySum.addAndGet(latencyNanos);
+        peakInFlight.accumulateAndGet(before, Math::max);
+        if( samples.incrementAndGet() >= WINDOW && adapting.compareAndSet(false, true) ) {
+          try {
+            adapt();
+          } finally {
+            adapting.set(false);
+          }
+        }
+      }
+      if( waiting.get() > 0 ) {
+        lock.lock();
+        try {
+          released.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+
+    /**
+     * Closes the current window.  Calls released while it is being closed may count towards either
+     * window, which only blurs the edge between the two.
+     */
+    private void adapt() {
+      int count = samples.getAndSet(0);
+      double mean = (double)latencySum.getAndSet(0) / count;
+      int peak = peakInFlight.getAndSet(0);
+      double previous = baseline;
+      baseline = previous == 0 || mean < previous ? mean : previous + (mean - previous) * BASELINE_DRIFT;
+      if( previous > 0 && mean > previous * TOLERANCE ) {
+        limit = Math.max(1, (int)(limit * BACKOFF));
+      } else if( peak * 2 >= limit ) {
+        limit = Math.min(maxLimit, limit + 1);
+      }
+    }
+
+    public int getLimit() {
+      return limit;
+    }
+
+    public int getInFlight() {
+      return inFlight.get();
+    }
+
+    public int getWaiting() {
+      return waiting.get();
+    }
+  }
+
+  /**
+   * Binds a BulkheadInterceptor to each @Bulkhead method of the given types.
+   */
+  public static class BulkheadModule extends MethodInterceptorTest.TrackedMethodsModule {
+    private MethodInterceptorTest.Registry registry;
+    private Map<Method, Limiter> limiters = Maps.newConcurrentMap();
+
+    public BulkheadModule(MethodInterceptorTest.Registry registry, Class<?>... types) {
+      super(types);
+      this.registry = registry;
+    }
+
+    @Override
+    protected void configure(Class<?> type, Method method) {
+      Bulkhead bulkhead = method.getAnnotation(Bulkhead.class);
+      if( bulkhead != null ) {
+        Limiter limiter = new Limiter(bulkhead.maxConcurrent(), bulkhead.maxWaiting(), bulkhead.maxWaitMillis(), MILLISECONDS, bulkhead.adaptive());
+        limiters.put(method, limiter);
+        bindInterceptor(type, method, new BulkheadInterceptor(registry, method, limiter));
+      }
+    }
+
+    /**
+     * The limiter bound to a method, once the module has been configured.
+     */
+    public Optional<Limiter> getLimiter(Method method) {
+      return Optional.ofNullable(limiters.get(method));
+    }
+  }
+
+  /**
+   * Runs a call only if its limiter has room, timing it for the limiter and for the registry's
+   * timer "&lt;method&gt;.bulkhead", kept apart from the method's own timer so a method that is
+   * also @Timed is not counted twice.  Turned away calls are counted under "&lt;method&gt;.rejected".
+   * A call interrupted while it waits for room is turned away too, with the thread's interrupt
+   * flag set again, since the methods guarded need not declare InterruptedException.
+   */
+  public static class BulkheadInterceptor implements MethodInterceptor {
+    private Limiter limiter;
+    private String name;
+    private MethodInterceptorTest.Timer timer;
+    private MethodInterceptorTest.Counter rejected;
+
+    public BulkheadInterceptor(MethodInterceptorTest.Registry registry, Method method, Limiter limiter) {
+      this.limiter = limiter;
+      this.name = MethodInterceptorTest.Registry.name(method);
+      this.timer = registry.timer(name + ".bulkhead");
+      this.rejected = registry.counter(name + ".rejected");
+    }
+
+    @Override
+    public Object invoke(MethodInvocation i) throws Throwable {
+      boolean acquired;
+      try {
+        acquired = limiter.acquire();
+      } catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        rejected.increment();
+        throw new BulkheadFullException(name+" was interrupted waiting for room", e);
+      }
+      if( !acquired ) {
+        rejected.increment();
+        throw new BulkheadFullException(name+" has "+limiter.getInFlight()+" calls in flight");
+      }
+      long startTime = System.nanoTime();
+      try {
+        return i.proceed();
+      } finally {
+        long latency = System.nanoTime() - startTime;
+        timer.record(latency);
+        limiter.release(latency);
+      }
+    }
+  }
+
+  @MethodInterceptorTest.Tracked
+  public static class GuardedMethods {
+    @Bulkhead(maxConcurrent = 2)
+    public int failFast(CountDownLatch latch) throws InterruptedException {
+      latch.await();
+      return 1;
+    }
+
+    @Bulkhead(maxConcurrent = 1, maxWaiting = 1, maxWaitMillis = 5000)
+    public int queued(CountDownLatch latch) {
+      Uninterruptibles.awaitUninterruptibly(latch);
+      return 1;
+    }
+
+    AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Slows down in proportion to how many calls it has at once, like a saturated dependency.
+     */
+    @Bulkhead(maxConcurrent = 8, maxWaiting = 2, maxWaitMillis = 1000, adaptive = true)
+    public int adaptive() throws InterruptedException {
+      try {
+        MILLISECONDS.sleep(2 * active.incrementAndGet());
+      } finally {
+        active.decrementAndGet();
+      }
+      return 1;
+    }
+  }
+
+  @Test
+  public void failsFastWhenFull() throws Throwable {
+    MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+    BulkheadModule module = new BulkheadModule(registry, GuardedMethods.class);
+    Injector injector = Guice.createInjector(module);
+    Method failFastMethod = GuardedMethods.class.getMethod("failFast", CountDownLatch.class);
+    String failFast = MethodInterceptorTest.Registry.name(failFastMethod);
+    Limiter limiter = module.getLimiter(failFastMethod).get();
+    GuardedMethods m = injector.getInstance(GuardedMethods.class);
+    ExecutorService e = Executors.newCachedThreadPool();
+    CountDownLatch latch = new CountDownLatch(1);
+
+    Future<Integer> first = e.submit(() -> m.failFast(latch));
+    Future<Integer> second = e.submit(() -> m.failFast(latch));
+    while( limiter.getInFlight() < 2 ) {
+      MILLISECONDS.sleep(1);
+    }
+
+    try {
+      m.failFast(new CountDownLatch(0));
+      fail("expected the bulkhead to be full");
+    } catch( BulkheadFullException expected ) {
+    }
+
+    latch.countDown();
+    assertThat(first.get() + second.get(), equalTo(2));
+    assertThat(m.failFast(latch), equalTo(1));
+    assertThat(registry.getCounter(failFast + ".rejected").get().getValue(), greaterThan(0L));
+
+    e.shutdown();
+  }
+
+  @Test
+  public void interruptedWaitIsRejected() throws Exception {
+    MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+    BulkheadModule module = new BulkheadModule(registry, GuardedMethods.class);
+    Injector injector = Guice.createInjector(module);
+    Method queuedMethod = GuardedMethods.class.getMethod("queued", CountDownLatch.class);
+    Limiter limiter = module.getLimiter(queuedMethod).get();
+    GuardedMethods m = injector.getInstance(GuardedMethods.class);
+    ExecutorService e = Executors.newCachedThreadPool();
+    CountDownLatch latch = new CountDownLatch(1);
+
+    Future<Integer> holder = e.submit(() -> m.queued(latch));
+    while( limiter.getInFlight() < 1 ) {
+      MILLISECONDS.sleep(1);
+    }
+
+    Thread.currentThread().interrupt();
+    try {
+      m.queued(new CountDownLatch(0));
+      fail("expected the interrupted call to be rejected");
+    } catch( BulkheadFullException expected ) {
+      assertThat(expected.getCause(), instanceOf(InterruptedException.class));
+    }
+    assertThat(Thread.interrupted(), equalTo(true));
+    assertThat(limiter.getWaiting(), equalTo(0));
+
+    latch.countDown();
+    assertThat(holder.get(), equalTo(1));
+    String queued = MethodInterceptorTest.Registry.name(queuedMethod);
+    assertThat(registry.getCounter(queued + ".rejected").get().getValue(), equalTo(1L));
+    assertThat(registry.getTimer(queued + ".bulkhead").get().times.getCount(), equalTo(1L));
+    assertThat(registry.getTimer(queuedMethod).isPresent(), equalTo(false));
+
+    e.shutdown();
+  }
+
+  @Test
+  public void waitsInBoundedQueue() throws Exception {
+    Limiter limiter = new Limiter(1, 1, 5000, MILLISECONDS, false);
+    ExecutorService e = Executors.newCachedThreadPool();
+
+    assertThat(limiter.acquire(), equalTo(true));
+
+    Future<Boolean> waiter = e.submit(limiter::acquire);
+    while( limiter.getWaiting() == 0 ) {
+      Thread.yield();
+    }
+
+    assertThat(limiter.acquire(), equalTo(false));
+
+    limiter.release(0);
+    assertThat(waiter.get(1, SECONDS), equalTo(true));
+    assertThat(limiter.getInFlight(), equalTo(1));
+
+    e.shutdown();
+  }
+
+  @Test
+  public void waitingTimesOut() throws Exception {
+    Limiter limiter = new Limiter(1, 1, 10, MILLISECONDS, false);
+
+    assertThat(limiter.acquire(), equalTo(true));
+    assertThat(limiter.acquire(), equalTo(false));
+    assertThat(limiter.getWaiting(), equalTo(0));
+  }
+
+  @Test
+  public void adaptiveLimit() throws InterruptedException {
+    Limiter limiter = new Limiter(10, 0, 0, MILLISECONDS, true);
+
+    window(limiter, 10);
+    window(limiter, 10);
+    assertThat(limiter.getLimit(), equalTo(10));
+
+    window(limiter, 5);
+    window(limiter, 9);
+    assertThat(limiter.getLimit(), equalTo(10));
+
+    window(limiter, 50);
+    assertThat(limiter.getLimit(), equalTo(9));
+
+    for( int i = 0; i < 20; i++ ) {
+      window(limiter, 100);
+    }
+    assertThat(limiter.getLimit(), greaterThan(1));
+    assertThat(limiter.getLimit(), lessThan(9));
+
+    int settled = limiter.getLimit();
+    assertThat(limiter.acquire(), equalTo(true));
+    window(limiter, 10);
+    assertThat(limiter.getLimit(), equalTo(settled + 1));
+  }
+
+  /**
+   * Runs one window of calls through a limiter, each taking the given time.
+   */
+  private static void window(Limiter limiter, long latencyMillis) throws InterruptedException {
+    for( int i = 0; i < Limiter.WINDOW; i++ ) {
+      assertThat(limiter.acquire(), equalTo(true));
+      limiter.release(MILLISECONDS.toNanos(latencyMillis));
+    }
+  }
+
+  @Test
+  public void adaptiveBulkheadShedsLoad() throws Exception {
+    MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+    BulkheadModule module = new BulkheadModule(registry, GuardedMethods.class);
+    Injector injector = Guice.createInjector(module);
+    Method adaptive = GuardedMethods.class.getMethod("adaptive");
+    GuardedMethods m = injector.getInstance(GuardedMethods.class);
+    Limiter limiter = module.getLimiter(adaptive).get();
+
+    for( int i = 0; i < Limiter.WINDOW; i++ ) {
+      m.adaptive();
+    }
+    assertThat(limiter.getLimit(), equalTo(8));
+
+    AtomicInteger rejections = new AtomicInteger();
+    AtomicInteger lowestLimit = new AtomicInteger(limiter.getLimit());
+    List<Thread> threadList = range(0, 8)
+      .mapToObj(t -> new Thread(() -> range(0, 40).forEach(i -> {
+        try {
+          m.adaptive();
+        } catch( BulkheadFullException e ) {
+          rejections.incrementAndGet();
+        } catch( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+        lowestLimit.accumulateAndGet(limiter.getLimit(), Math::min);
+      })))
+      .collect(toList());
+
+    threadList.stream().forEach(Thread::start);
+    threadList.stream().forEach(consumer(Thread::join));
+
+    assertThat(lowestLimit.get(), lessThan(8));
+    assertThat(rejections.get(), greaterThan(0));
+    assertThat(registry.getCounter(MethodInterceptorTest.Registry.name(adaptive) + ".rejected").get().getValue(), equalTo((long)rejections.get()));
+    assertThat(registry.getTimer(MethodInterceptorTest.Registry.name(adaptive) + ".bulkhead").get().times.getCount() + rejections.get(), equalTo(Limiter.WINDOW + 8 * 40L));
+  }
+}
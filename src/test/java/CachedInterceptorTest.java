@@ -0,0 +1,360 @@
+import static com.github.fge.lambdas.Throwing.consumer;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.IOException;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+
+import com.github.fge.lambdas.Throwing;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Memoizes the results of @Cached methods, keyed on their arguments, with the same per method
+ * binding that MethodInterceptorTest.TrackedModule uses.
+ */
+public class CachedInterceptorTest {
+  @Target(ElementType.METHOD)
+  @Retention(RetentionPolicy.RUNTIME)
+  public static @interface Cached {
+    long maximumSize() default 1000;
+
+    /**
+     * How long a result is kept after it is computed, or 0 to keep it until it is evicted for size.
+     */
+    long expireAfterWriteMillis() default 0;
+  };
+
+  @MethodInterceptorTest.Tracked
+  public static class ExpensiveMethods {
+    AtomicInteger calls = new AtomicInteger();
+
+    @Cached(maximumSize = 2)
+    public String square(int value) {
+      calls.incrementAndGet();
+      return String.valueOf(value * value);
+    }
+
+    @Cached
+    public String slowSquare(int value) {
+      calls.incrementAndGet();
+      MethodInterceptorTest.randomSleep();
+      return String.valueOf(value * value);
+    }
+
+    @Cached(expireAfterWriteMillis = 20)
+    public String slowNullable(String value) {
+      calls.incrementAndGet();
+      MethodInterceptorTest.randomSleep();
+      return value.isEmpty() ? null : value;
+    }
+
+    @Cached
+    public int sum(int[] values) {
+      calls.incrementAndGet();
+      return Arrays.stream(values).sum();
+    }
+
+    @Cached
+    public String rethrow(Throwable t) throws Throwable {
+      calls.incrementAndGet();
+      throw t;
+    }
+  }
+
+  /**
+   * Binds a CachingInterceptor to each @Cached method of the given types.  Expiry is measured with
+   * the given ticker, the system's by default.
+   */
+  public static class CachedModule extends MethodInterceptorTest.TrackedMethodsModule {
+    private MethodInterceptorTest.Registry registry;
+    private Ticker ticker;
+
+    public CachedModule(MethodInterceptorTest.Registry registry, Class<?>... types) {
+      this(registry, Ticker.systemTicker(), types);
+    }
+
+    public CachedModule(MethodInterceptorTest.Registry registry, Ticker ticker, Class<?>... types) {
+      super(types);
+      this.registry = registry;
+      this.ticker = ticker;
+    }
+
+    @Override
+    protected void configure(Class<?> type, Method method) {
+      if( method.isAnnotationPresent(Cached.class) ) {
+        bindInterceptor(type, method, new CachingInterceptor(registry, method, method.getAnnotation(Cached.class), ticker));
+      }
+    }
+  }
+
+  /**
+   * Caches a method's results in a Guava cache keyed on the object called and the arguments, so
+   * instances never see each other's results.  Guava evicts entries in roughly least recently used
+   * order and loads each key once, however many callers miss on it at the same time.  Hits, misses
+   * and evictions are counted in the registry under the method's name; a miss is a load, so
+   * callers that wait on another caller's load count as hits.
+   *
+   * Entries hold the object called strongly, so an object stays reachable until its entries are
+   * evicted; bound the cache with maximumSize or expireAfterWriteMillis on methods of short lived
+   * objects.
+   */
+  public static class CachingInterceptor implements MethodInterceptor {
+    /**
+     * The object called, compared by identity, and its arguments, compared as
+     * Arrays.deepEquals does, so array arguments are compared by their contents.  A key made for
+     * a lookup shares the caller's arguments; the key a result is stored under is a copy(), so a
+     * caller changing an array afterwards cannot change the key it was cached under.  Arguments
+     * other than arrays are not copied and must not change while they are cached.
+     */
+    static final class Key {
+      private final Object target;
+      private final Object[] arguments;
+      private final int hash;
+
+      Key(Object target, Object[] arguments) {
+        this(target, arguments, 31 * System.identityHashCode(target) + Arrays.deepHashCode(arguments));
+      }
+
+      private Key(Object target, Object[] arguments, int hash) {
+        this.target = target;
+        this.arguments = arguments;
+        this.hash = hash;
+      }
+
+      Key copy() {
+        return new Key(target, (Object[])deepCopy(arguments), hash);
+      }
+
+      private static Object deepCopy(Object value) {
+        if( value instanceof Object[] ) {
+          Object[] copy = ((Object[])value).clone();
+          for( int i = 0; i < copy.length; i++ ) {
+            copy[i] = deepCopy(copy[i]);
+          }
+          return copy;
+        }
+        if( value != null && value.getClass().isArray() ) {
+          int length = Array.getLength(value);
+          Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+          System.arraycopy(value, 0, copy, 0, length);
+          return copy;
+        }
+        return value;
+      }
+
+      @Override
+      public int hashCode() {
+        return hash;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if( !(o instanceof Key) ) {
+          return false;
+        }
+        Key other = (Key)o;
+        return target == other.target && hash == other.hash && Arrays.deepEquals(arguments, other.arguments);
+      }
+    }
+
+    /** Carries a Throwable that is neither an Exception nor an Error out of a load. */
+    static final class LoadThrowable extends Exception {
+      LoadThrowable(Throwable cause) {
+        super(cause);
+      }
+    }
+
+    private Cache<Key, Optional<Object>> cache;
+    private MethodInterceptorTest.Counter hits;
+    private MethodInterceptorTest.Counter misses;
+
+    public CachingInterceptor(MethodInterceptorTest.Registry registry, Method method, Cached cached) {
+      this(registry, method, cached, Ticker.systemTicker());
+    }
+
+    public CachingInterceptor(MethodInterceptorTest.Registry registry, Method method, Cached cached, Ticker ticker) {
+      String name = MethodInterceptorTest.Registry.name(method);
+      this.hits = registry.counter(name + ".hits");
+      this.misses = registry.counter(name + ".misses");
+      MethodInterceptorTest.Counter evictions = registry.counter(name + ".evictions");
+
+      CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+        .ticker(ticker)
+        .maximumSize(cached.maximumSize())
+        .removalListener(notification -> {
+          if( notification.wasEvicted() ) {
+            evictions.increment();
+          }
+        });
+      if( cached.expireAfterWriteMillis() > 0 ) {
+        builder.expireAfterWrite(cached.expireAfterWriteMillis(), MILLISECONDS);
+      }
+      this.cache = builder.build();
+    }
+
+    @Override
+    public Object invoke(MethodInvocation i) throws Throwable {
+      Key key = new Key(i.getThis(), i.getArguments());
+      Optional<Object> result = cache.getIfPresent(key);
+      if( result != null ) {
+        hits.increment();
+        return result.orElse(null);
+      }
+      boolean[] loaded = new boolean[1];
+      try {
+        result = cache.get(key.copy(), () -> {
+          loaded[0] = true;
+          misses.increment();
+          try {
+            return Optional.ofNullable(i.proceed());
+          } catch( Exception | Error e ) {
+            throw e;
+          } catch( Throwable t ) {
+            throw new LoadThrowable(t);
+          }
+        });
+      } catch( ExecutionException | UncheckedExecutionException | ExecutionError e ) {
+        Throwable cause = e.getCause();
+        throw cause instanceof LoadThrowable ? cause.getCause() : cause;
+      }
+      if( !loaded[0] ) {
+        hits.increment();
+      }
+      return result.orElse(null);
+    }
+  }
+
+  @Test
+  public void cachesResults() throws NoSuchMethodException, SecurityException {
+    MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+    Injector injector = Guice.createInjector(new CachedModule(registry, ExpensiveMethods.class));
+    String square = MethodInterceptorTest.Registry.name(ExpensiveMethods.class.getMethod("square", int.class));
+
+    ExpensiveMethods m = injector.getInstance(ExpensiveMethods.class);
+
+    assertThat(m.square(2), equalTo("4"));
+    assertThat(m.square(2), equalTo("4"));
+    assertThat(m.square(3), equalTo("9"));
+    assertThat(m.calls.get(), equalTo(2));
+    assertThat(registry.getCounter(square + ".hits").get().getValue(), equalTo(1L));
+    assertThat(registry.getCounter(square + ".misses").get().getValue(), equalTo(2L));
+
+    m.square(4);
+    m.square(5);
+
+    assertThat(registry.getCounter(square + ".evictions").get().getValue(), equalTo(2L));
+  }
+
+  @Test
+  public void cachesNullsAndExpires() throws Exception {
+    MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+    AtomicLong nanos = new AtomicLong();
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return nanos.get();
+      }
+    };
+    Injector injector = Guice.createInjector(new CachedModule(registry, ticker, ExpensiveMethods.class));
+
+    ExpensiveMethods m = injector.getInstance(ExpensiveMethods.class);
+
+    assertThat(m.slowNullable(""), equalTo(null));
+    nanos.addAndGet(MILLISECONDS.toNanos(19));
+    assertThat(m.slowNullable(""), equalTo(null));
+    assertThat(m.calls.get(), equalTo(1));
+
+    nanos.addAndGet(MILLISECONDS.toNanos(1));
+    m.slowNullable("");
+
+    assertThat(m.calls.get(), equalTo(2));
+  }
+
+  @Test
+  public void keysOnReceiverAndArrayContents() throws NoSuchMethodException, SecurityException {
+    Injector injector = Guice.createInjector(new CachedModule(new MethodInterceptorTest.Registry(), ExpensiveMethods.class));
+    ExpensiveMethods first = injector.getInstance(ExpensiveMethods.class);
+    ExpensiveMethods second = injector.getInstance(ExpensiveMethods.class);
+
+    assertThat(first.square(2), equalTo("4"));
+    assertThat(second.square(2), equalTo("4"));
+    assertThat(first.calls.get(), equalTo(1));
+    assertThat(second.calls.get(), equalTo(1));
+
+    assertThat(first.sum(new int[] { 1, 2, 3 }), equalTo(6));
+    assertThat(first.sum(new int[] { 1, 2, 3 }), equalTo(6));
+    assertThat(first.calls.get(), equalTo(2));
+
+    int[] values = { 4, 5 };
+    assertThat(first.sum(values), equalTo(9));
+    values[1] = 6;
+    assertThat(first.sum(values), equalTo(10));
+    assertThat(first.sum(new int[] { 4, 5 }), equalTo(9));
+    assertThat(first.calls.get(), equalTo(4));
+  }
+
+  @Test
+  public void rethrowsThrowablesUnwrapped() {
+    Injector injector = Guice.createInjector(new CachedModule(new MethodInterceptorTest.Registry(), ExpensiveMethods.class));
+    ExpensiveMethods m = injector.getInstance(ExpensiveMethods.class);
+
+    for( Throwable thrown : Arrays.asList(new Throwable("odd"), new IOException("checked"), new IllegalStateException("unchecked"), new AssertionError("error")) ) {
+      try {
+        m.rethrow(thrown);
+        throw new AssertionError("expected "+thrown);
+      } catch( Throwable t ) {
+        assertThat(t, sameInstance(thrown));
+      }
+    }
+  }
+
+  @Test
+  public void concurrentMissesLoadOnce() throws Exception {
+    MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+    Injector injector = Guice.createInjector(new CachedModule(registry, ExpensiveMethods.class));
+    ExpensiveMethods m = injector.getInstance(ExpensiveMethods.class);
+    CountDownLatch start = new CountDownLatch(1);
+
+    List<Thread> threadList = range(0, 16)
+      .mapToObj(i -> new Thread(Throwing.runnable(() -> {
+        start.await();
+        assertThat(m.slowSquare(3), equalTo("9"));
+      })))
+      .collect(toList());
+
+    threadList.stream().forEach(Thread::start);
+    start.countDown();
+    threadList.stream().forEach(consumer(Thread::join));
+
+    String slowSquare = MethodInterceptorTest.Registry.name(ExpensiveMethods.class.getMethod("slowSquare", int.class));
+    assertThat(m.calls.get(), equalTo(1));
+    assertThat(registry.getCounter(slowSquare + ".misses").get().getValue(), equalTo(1L));
+    assertThat(registry.getCounter(slowSquare + ".hits").get().getValue(), equalTo(15L));
+  }
+}
@@ -3,8 +3,32 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.junit.Test;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
@@ -23,6 +47,111 @@ public class CommandPatternTest {
         }
     }
 
+    /**
+     * A ComposedRunnable whose children name the children they depend on.  Each child runs on the
+     * pool as soon as its dependencies have finished, so independent children run at the same time.
+     * If a child throws, every child that has not started yet is cancelled and run() throws the
+     * child's exception; children already running are not interrupted.  How long each child ran is
+     * kept in getTimings().
+     */
+    public static class ParallelComposedRunnable implements Runnable {
+        Map<String, Runnable> children = new LinkedHashMap<>();
+        Map<String, List<String>> dependencies = new LinkedHashMap<>();
+        Map<String, Long> timings = new ConcurrentHashMap<>();
+        ForkJoinPool pool;
+
+        public ParallelComposedRunnable(ForkJoinPool pool) {
+            this.pool = pool;
+        }
+
+        public ParallelComposedRunnable addChild(String name, Runnable child, String... dependsOn){
+            children.put(name, child);
+            dependencies.put(name, Arrays.asList(dependsOn));
+            return this;
+        }
+
+        /**
+         * Nanoseconds each child ran for, including children that threw.
+         */
+        public Map<String, Long> getTimings() {
+            return timings;
+        }
+
+        public void run() {
+            timings.clear();
+            CompletableFuture<Void> start = new CompletableFuture<>();
+            Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+            for (String name : inDependencyOrder()) {
+                CompletableFuture<?>[] ready = dependencies.get(name).stream().map(futures::get).toArray(CompletableFuture[]::new);
+                Runnable child = children.get(name);
+                futures.put(name, (ready.length == 0 ? start : CompletableFuture.allOf(ready)).thenRunAsync(() -> time(name, child), pool));
+            }
+
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Collection<CompletableFuture<Void>> all = futures.values();
+            all.forEach(future -> future.whenComplete((result, t) -> {
+                if (t != null && failure.compareAndSet(null, unwrap(t))) {
+                    all.forEach(other -> other.cancel(false));
+                }
+            }));
+
+            start.complete(null);
+            try {
+                CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[all.size()])).join();
+            } catch (CompletionException | CancellationException e) {
+                Throwable cause = failure.get() != null ? failure.get() : unwrap(e);
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new CompletionException(cause);
+            }
+        }
+
+        private void time(String name, Runnable child) {
+            long startTime = System.nanoTime();
+            try {
+                child.run();
+            } finally {
+                timings.put(name, System.nanoTime() - startTime);
+            }
+        }
+
+        private static Throwable unwrap(Throwable t) {
+            return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        }
+
+        private List<String> inDependencyOrder() {
+            List<String> order = new ArrayList<>();
+            Set<String> visiting = new HashSet<>();
+            Set<String> visited = new HashSet<>();
+            for (String name : children.keySet()) {
+                visit(name, visiting, visited, order);
+            }
+            return order;
+        }
+
+        private void visit(String name, Set<String> visiting, Set<String> visited, List<String> order) {
+            if (visited.contains(name)) {
+                return;
+            }
+            if (!visiting.add(name)) {
+                throw new IllegalStateException("children depend on each other in a cycle through " + name);
+            }
+            for (String dependency : dependencies.get(name)) {
+                if (!children.containsKey(dependency)) {
+                    throw new IllegalArgumentException(name + " depends on unknown child " + dependency);
+                }
+                visit(dependency, visiting, visited, order);
+            }
+            visiting.remove(name);
+            visited.add(name);
+            order.add(name);
+        }
+    }
+
     @Test
     public void stuff(){
         Runnable runnableOne = ()-> {System.out.println("Hello");};
@@ -33,7 +162,7 @@ public class CommandPatternTest {
         composedRunnable.run();
     }
 
-    public class Chain<T> implements Predicate<T> {
+    public static class Chain<T> implements Predicate<T> {
         List<Predicate<T>> children = new ArrayList<>();
 
         public Chain<T> addChild(Predicate<T> child){
@@ -47,8 +176,90 @@ public class CommandPatternTest {
         }
     }
 
-    private static Predicate<ObjectNode> handleType(String type, Consumer<ObjectNode> consumer){
-        return objectNode -> {
+    /**
+     * A Chain of ObjectNode handlers that finds the handler for an event's type with one hash lookup
+     * instead of testing every child.  Handlers added with addHandler are indexed by type; any other
+     * predicate, such as a nested Chain, is kept in a list and tested in order.  The result is the
+     * same as a Chain with the same children in the same order: a predicate added before the
+     * event's handler still gets the first chance to take it, and a second handler for a type is
+     * never reached.
+     */
+    public static class IndexedChain implements Predicate<ObjectNode> {
+        static class Handler {
+            int order;
+            Consumer<ObjectNode> consumer;
+
+            Handler(int order, Consumer<ObjectNode> consumer) {
+                this.order = order;
+                this.consumer = consumer;
+            }
+        }
+
+        static class Generic {
+            int order;
+            Predicate<ObjectNode> predicate;
+
+            Generic(int order, Predicate<ObjectNode> predicate) {
+                this.order = order;
+                this.predicate = predicate;
+            }
+        }
+
+        Map<String, Handler> handlers = new HashMap<>();
+        List<Generic> generics = new ArrayList<>();
+        int size;
+
+        public IndexedChain addHandler(String type, Consumer<ObjectNode> consumer) {
+            handlers.putIfAbsent(type, new Handler(size, consumer));
+            size++;
+            return this;
+        }
+
+        public IndexedChain addChild(Predicate<ObjectNode> child) {
+            generics.add(new Generic(size, child));
+            size++;
+            return this;
+        }
+
+        @Override
+        public boolean test(ObjectNode objectNode) {
+            JsonNode jsonNodeType = objectNode.get("type");
+            Handler handler = jsonNodeType != null && jsonNodeType.isTextual() ? handlers.get(jsonNodeType.asText()) : null;
+            int handlerOrder = handler == null ? Integer.MAX_VALUE : handler.order;
+
+            for (int i = 0; i < generics.size(); i++) {
+                Generic generic = generics.get(i);
+                if (generic.order > handlerOrder) {
+                    break;
+                }
+                if (generic.predicate.test(objectNode)) {
+                    return true;
+                }
+            }
+
+            if (handler != null) {
+                handler.consumer.accept(objectNode);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Handles the events of one type.  A class rather than a lambda so that DispatchTable can see
+     * which type it handles.
+     */
+    public static class TypeHandler implements Predicate<ObjectNode> {
+        final String type;
+        final Consumer<ObjectNode> consumer;
+
+        public TypeHandler(String type, Consumer<ObjectNode> consumer) {
+            this.type = type;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public boolean test(ObjectNode objectNode) {
             JsonNode jsonNodeType = objectNode.get("type");
 
             if(jsonNodeType.isTextual() && jsonNodeType.asText().equals(type)){
@@ -57,7 +268,140 @@ public class CommandPatternTest {
             }
 
             return false;
-        };
+        }
+    }
+
+    private static TypeHandler handleType(String type, Consumer<ObjectNode> consumer){
+        return new TypeHandler(type, consumer);
+    }
+
+    /**
+     * A tree of Chains, IndexedChains and TypeHandlers flattened, depth first, into arrays.  Each
+     * type maps to the position of its first handler, and the other predicates keep their positions,
+     * so dispatch tests only the predicates before the event's handler, in order, then runs the
+     * handler: the same first match the tree would find, without walking it.  The table never
+     * changes once compiled.
+     */
+    public static final class DispatchTable implements Predicate<ObjectNode> {
+        private final Map<String, Integer> handlerPositions;
+        private final Consumer<ObjectNode>[] handlers;
+        private final Predicate<ObjectNode>[] generics;
+        private final int[] genericPositions;
+
+        @SuppressWarnings("unchecked")
+        private DispatchTable(List<Predicate<ObjectNode>> flattened) {
+            Map<String, Integer> positions = new HashMap<>();
+            List<Predicate<ObjectNode>> genericList = new ArrayList<>();
+            List<Integer> genericPositionList = new ArrayList<>();
+            handlers = (Consumer<ObjectNode>[]) new Consumer<?>[flattened.size()];
+            for (int i = 0; i < flattened.size(); i++) {
+                Predicate<ObjectNode> predicate = flattened.get(i);
+                if (predicate instanceof TypeHandler) {
+                    TypeHandler handler = (TypeHandler) predicate;
+                    if (positions.putIfAbsent(handler.type, i) == null) {
+                        handlers[i] = handler.consumer;
+                    }
+                } else {
+                    genericList.add(predicate);
+                    genericPositionList.add(i);
+                }
+            }
+            handlerPositions = Collections.unmodifiableMap(positions);
+            generics = genericList.toArray((Predicate<ObjectNode>[]) new Predicate<?>[genericList.size()]);
+            genericPositions = genericPositionList.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        public static DispatchTable compile(Predicate<ObjectNode> root) {
+            List<Predicate<ObjectNode>> flattened = new ArrayList<>();
+            flatten(root, flattened);
+            return new DispatchTable(flattened);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void flatten(Predicate<ObjectNode> predicate, List<Predicate<ObjectNode>> into) {
+            if (predicate instanceof Chain) {
+                for (Predicate<ObjectNode> child : ((Chain<ObjectNode>) predicate).children) {
+                    flatten(child, into);
+                }
+            } else if (predicate instanceof IndexedChain) {
+                IndexedChain indexed = (IndexedChain) predicate;
+                Predicate<ObjectNode>[] ordered = (Predicate<ObjectNode>[]) new Predicate<?>[indexed.size];
+                indexed.handlers.forEach((type, handler) -> ordered[handler.order] = new TypeHandler(type, handler.consumer));
+                indexed.generics.forEach(generic -> ordered[generic.order] = generic.predicate);
+                for (Predicate<ObjectNode> child : ordered) {
+                    if (child != null) {
+                        flatten(child, into);
+                    }
+                }
+            } else {
+                into.add(predicate);
+            }
+        }
+
+        public int size() {
+            return handlerPositions.size() + generics.length;
+        }
+
+        @Override
+        public boolean test(ObjectNode objectNode) {
+            JsonNode jsonNodeType = objectNode.get("type");
+            Integer position = jsonNodeType != null && jsonNodeType.isTextual() ? handlerPositions.get(jsonNodeType.asText()) : null;
+            int handlerPosition = position == null ? Integer.MAX_VALUE : position;
+
+            for (int i = 0; i < generics.length && genericPositions[i] < handlerPosition; i++) {
+                if (generics[i].test(objectNode)) {
+                    return true;
+                }
+            }
+
+            if (position != null) {
+                handlers[handlerPosition].accept(objectNode);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Dispatches through a DispatchTable compiled from a tree of predicates.  When the tree's
+     * handlers change, recompile() or swap() builds a new table off to the side and swaps it in
+     * atomically; events already dispatching finish on the table they started with.  The root and
+     * its table are published together, so a recompile racing a swap either compiles the new root
+     * or is retried against it, and never leaves the old root's table in place.
+     */
+    public static class CompiledChain implements Predicate<ObjectNode> {
+        private static final class Compiled {
+            final Predicate<ObjectNode> root;
+            final DispatchTable table;
+
+            Compiled(Predicate<ObjectNode> root) {
+                this.root = root;
+                this.table = DispatchTable.compile(root);
+            }
+        }
+
+        private AtomicReference<Compiled> compiled = new AtomicReference<>();
+
+        public CompiledChain(Predicate<ObjectNode> root) {
+            swap(root);
+        }
+
+        public void swap(Predicate<ObjectNode> root) {
+            compiled.set(new Compiled(root));
+        }
+
+        public void recompile() {
+            compiled.updateAndGet(current -> new Compiled(current.root));
+        }
+
+        public DispatchTable getTable() {
+            return compiled.get().table;
+        }
+
+        @Override
+        public boolean test(ObjectNode objectNode) {
+            return compiled.get().table.test(objectNode);
+        }
     }
 
     private static ObjectNode event(String type){
@@ -85,4 +429,196 @@ public class CommandPatternTest {
         parentChain.test(event("hello"));
         parentChain.test(event("hola"));
     }
+
+    @Test
+    public void indexedChainMatchesChain(){
+        List<String> handled = new ArrayList<>();
+        Chain<ObjectNode> secondChain = new Chain<>();
+        secondChain.addChild(handleType("hola", node -> handled.add("Hola")))
+                .addChild(handleType("hello", node -> handled.add("Nested Hello")));
+
+        IndexedChain chain = new IndexedChain()
+                .addHandler("hello", node -> handled.add("Hello"))
+                .addChild(secondChain)
+                .addHandler("goodbye", node -> handled.add("Goodbye"))
+                .addHandler("hello", node -> handled.add("Second Hello"))
+                .addChild(node -> node.has("fallback") && handled.add("Fallback"));
+
+        assertThat(chain.test(event("hello")), equalTo(true));
+        assertThat(chain.test(event("hola")), equalTo(true));
+        assertThat(chain.test(event("goodbye")), equalTo(true));
+        assertThat(chain.test(event("unknown")), equalTo(false));
+        assertThat(chain.test(event("unknown").put("fallback", true)), equalTo(true));
+
+        assertThat(handled, contains("Hello", "Hola", "Goodbye", "Fallback"));
+    }
+
+    @Test
+    public void indexedChainTestsEarlierPredicatesFirst(){
+        List<String> handled = new ArrayList<>();
+        IndexedChain chain = new IndexedChain()
+                .addChild(handleType("hello", node -> handled.add("Generic Hello")))
+                .addHandler("hello", node -> handled.add("Indexed Hello"));
+
+        chain.test(event("hello"));
+
+        assertThat(handled, contains("Generic Hello"));
+    }
+
+    @Test
+    public void compiledChainMatchesNestedChains(){
+        List<String> nested = new ArrayList<>();
+        List<String> compiled = new ArrayList<>();
+        Predicate<ObjectNode> parentChain = parentChain(nested);
+        CompiledChain compiledChain = new CompiledChain(parentChain(compiled));
+
+        for (String type : new String[] { "hello", "goodbye", "hola", "adios", "bonjour", "unknown" }) {
+            assertThat(compiledChain.test(event(type)), equalTo(parentChain.test(event(type))));
+        }
+
+        assertThat(compiled, equalTo(nested));
+        assertThat(compiledChain.getTable().size(), equalTo(5));
+    }
+
+    @Test
+    public void compiledChainSwapsTables(){
+        List<String> handled = new ArrayList<>();
+        Chain<ObjectNode> chain = new Chain<>();
+        chain.addChild(handleType("hello", node -> handled.add("Hello")));
+        CompiledChain compiledChain = new CompiledChain(chain);
+
+        chain.addChild(handleType("goodbye", node -> handled.add("Goodbye")));
+        assertThat(compiledChain.test(event("goodbye")), equalTo(false));
+
+        compiledChain.recompile();
+        assertThat(compiledChain.test(event("goodbye")), equalTo(true));
+
+        compiledChain.swap(handleType("goodbye", node -> handled.add("Swapped Goodbye")));
+        compiledChain.test(event("goodbye"));
+        assertThat(compiledChain.test(event("hello")), equalTo(false));
+
+        assertThat(handled, contains("Goodbye", "Swapped Goodbye"));
+    }
+
+    @Test
+    public void compiledChainRecompilesTheSwappedRoot() throws InterruptedException {
+        Predicate<ObjectNode> first = handleType("first", node -> {});
+        Predicate<ObjectNode> second = handleType("second", node -> {});
+        for (int round = 0; round < 100; round++) {
+            CompiledChain compiledChain = new CompiledChain(first);
+            Thread recompiler = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    compiledChain.recompile();
+                }
+            });
+            recompiler.start();
+            compiledChain.swap(second);
+            recompiler.join();
+
+            assertThat(compiledChain.test(event("second")), equalTo(true));
+            assertThat(compiledChain.test(event("first")), equalTo(false));
+        }
+    }
+
+    private Predicate<ObjectNode> parentChain(List<String> handled){
+        Chain<ObjectNode> chain = new Chain<>();
+        chain.addChild(handleType("hello", node -> handled.add("Hello")))
+             .addChild(handleType("goodbye", node -> handled.add("Goodbye")))
+             .addChild(handleType("hello", node -> handled.add("Second Hello")));
+
+        IndexedChain secondChain = new IndexedChain()
+                .addHandler("hola", node -> handled.add("Hola"))
+                .addChild(node -> node.get("type").asText().startsWith("b") && handled.add("B"))
+                .addHandler("adios", node -> handled.add("Adios"));
+
+        return new Chain<ObjectNode>().addChild(chain).addChild(secondChain);
+    }
+
+    private static Runnable sleep(long millis, List<String> finished, String name){
+        return () -> {
+            try {
+                MILLISECONDS.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.add(name);
+        };
+    }
+
+    @Test
+    public void parallelChildrenRunConcurrently(){
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<String> finished = Collections.synchronizedList(new ArrayList<>());
+            ParallelComposedRunnable composed = new ParallelComposedRunnable(pool)
+                    .addChild("report", () -> finished.add("report"), "one", "two", "three")
+                    .addChild("one", sleep(50, finished, "one"))
+                    .addChild("two", sleep(50, finished, "two"))
+                    .addChild("three", sleep(50, finished, "three"));
+
+            long startTime = System.nanoTime();
+            composed.run();
+            long elapsed = System.nanoTime() - startTime;
+
+            assertThat(finished.size(), equalTo(4));
+            assertThat(finished.get(3), equalTo("report"));
+            assertThat(NANOSECONDS.toMillis(elapsed), lessThan(140L));
+            assertThat(composed.getTimings().get("one"), greaterThanOrEqualTo(MILLISECONDS.toNanos(50)));
+
+            composed.run();
+            assertThat(composed.getTimings().size(), equalTo(4));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelChildrenFailFast() throws InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<String> finished = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch slowStarted = new CountDownLatch(1);
+            CountDownLatch slowFinished = new CountDownLatch(1);
+            Runnable slow = sleep(200, finished, "slow");
+            ParallelComposedRunnable composed = new ParallelComposedRunnable(pool)
+                    .addChild("fail", () -> {
+                        try {
+                            slowStarted.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        throw new IllegalStateException("failed");
+                    })
+                    .addChild("slow", () -> {
+                        slowStarted.countDown();
+                        slow.run();
+                        slowFinished.countDown();
+                    })
+                    .addChild("afterSlow", () -> finished.add("afterSlow"), "slow")
+                    .addChild("afterFail", () -> finished.add("afterFail"), "fail");
+
+            long startTime = System.nanoTime();
+            try {
+                composed.run();
+                throw new AssertionError("expected the child's exception");
+            } catch (IllegalStateException expected) {
+                assertThat(expected.getMessage(), equalTo("failed"));
+            }
+            assertThat(NANOSECONDS.toMillis(System.nanoTime() - startTime), lessThan(150L));
+
+            assertThat(slowFinished.await(1, SECONDS), equalTo(true));
+            assertThat(finished, contains("slow"));
+            assertThat(composed.getTimings().containsKey("fail"), equalTo(true));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void parallelChildrenRejectCycles(){
+        new ParallelComposedRunnable(ForkJoinPool.commonPool())
+                .addChild("a", () -> {}, "b")
+                .addChild("b", () -> {}, "a")
+                .run();
+    }
 }
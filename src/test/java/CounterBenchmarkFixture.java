@@ -0,0 +1,12 @@
+import benchmarks.CounterBenchmark;
+
+/**
+ * Builds the subjects of benchmarks.CounterBenchmark.
+ */
+public class CounterBenchmarkFixture implements CounterBenchmark.Fixture {
+
+  @Override
+  public Runnable adderCounter() {
+    return new MethodInterceptorTest.AdderCounter()::increment;
+  }
+}
@@ -0,0 +1,317 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Reads newline delimited JSON events and routes them by type, as CommandPatternTest's chains do,
+ * without building an ObjectNode for every event.
+ */
+public class EventIngestionTest {
+
+    /**
+     * One line of input.  Only the type is read up front; body() parses the whole line into a tree
+     * the first time a handler asks for it.  An event, and the bytes it points into, are reused for
+     * the next line, so handlers must not hold on to one after they return.
+     */
+    public static class LazyEvent {
+        private ObjectMapper mapper;
+        private byte[] bytes;
+        private int offset;
+        private int length;
+        private String type;
+        private ObjectNode body;
+        private long bodiesBuilt;
+
+        LazyEvent(ObjectMapper mapper) {
+            this.mapper = mapper;
+        }
+
+        void reset(byte[] bytes, int offset, int length, String type) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.type = type;
+            this.body = null;
+        }
+
+        /**
+         * The event's type, or null if it has no textual type field.
+         */
+        public String getType() {
+            return type;
+        }
+
+        public ObjectNode body() {
+            if (body == null) {
+                try (JsonParser parser = mapper.getFactory().createParser(bytes, offset, length)) {
+                    body = mapper.readTree(parser);
+                } catch (JsonProcessingException jpe) {
+                    throw new MalformedEventException(jpe);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException("could not parse event body.", ioe);
+                }
+                bodiesBuilt++;
+            }
+            return body;
+        }
+
+        public String getText() {
+            return new String(bytes, offset, length, UTF_8);
+        }
+    }
+
+    /**
+     * Thrown by LazyEvent.body() for a line that is not a JSON object.
+     */
+    public static class MalformedEventException extends UncheckedIOException {
+        public MalformedEventException(JsonProcessingException cause) {
+            super("could not parse event body.", cause);
+        }
+    }
+
+    /**
+     * Routes NDJSON events to handlers by their type field.  Lines are split straight out of a byte
+     * buffer, and each line's top level fields are streamed with a JsonParser only until the type is
+     * found, skipping the values of any fields before it.  Handlers added with on() get the
+     * LazyEvent; those added with onBody(), and the fallback for types with no handler, get the
+     * body, so a tree is built only for the events that need one.  As with CommandPatternTest.IndexedChain,
+     * the first handler added for a type is the one that runs.  Events with no textual type go to
+     * the fallback.  A line that turns out not to be JSON, whether while its type is read or when
+     * a handler asks for its body, is counted as malformed and skipped.
+     */
+    public static class EventIngester {
+        public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+        private ObjectMapper mapper = new ObjectMapper();
+        private JsonFactory factory = mapper.getFactory();
+        private Map<String, Consumer<LazyEvent>> handlers = new HashMap<>();
+        private Predicate<ObjectNode> fallback;
+        private LazyEvent event = new LazyEvent(mapper);
+        private int bufferSize;
+        private long eventCount;
+        private long unhandledCount;
+        private long malformedCount;
+
+        public EventIngester() {
+            this(DEFAULT_BUFFER_SIZE);
+        }
+
+        /**
+         * @param bufferSize the starting size of the line buffer, which grows to fit the longest line.
+         */
+        public EventIngester(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        public EventIngester on(String type, Consumer<LazyEvent> handler) {
+            handlers.putIfAbsent(type, handler);
+            return this;
+        }
+
+        public EventIngester onBody(String type, Consumer<ObjectNode> handler) {
+            return on(type, event -> handler.accept(event.body()));
+        }
+
+        /**
+         * Handles events whose type has no handler, or that have no textual type, such as a
+         * CommandPatternTest.Chain.
+         */
+        public EventIngester fallback(Predicate<ObjectNode> fallback) {
+            this.fallback = fallback;
+            return this;
+        }
+
+        public void ingest(Path path) throws IOException {
+            try (InputStream in = Files.newInputStream(path)) {
+                ingest(in);
+            }
+        }
+
+        public void ingest(InputStream in) throws IOException {
+            byte[] buffer = new byte[bufferSize];
+            int filled = 0;
+            int scanned = 0;
+            int read;
+            while ((read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+                filled += read;
+                int lineStart = 0;
+                for (int i = scanned; i < filled; i++) {
+                    if (buffer[i] == '\n') {
+                        dispatch(buffer, lineStart, i - lineStart);
+                        lineStart = i + 1;
+                    }
+                }
+                System.arraycopy(buffer, lineStart, buffer, 0, filled - lineStart);
+                filled -= lineStart;
+                scanned = filled;
+                if (filled == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            if (filled > 0) {
+                dispatch(buffer, 0, filled);
+            }
+        }
+
+        private void dispatch(byte[] buffer, int offset, int length) throws IOException {
+            String type;
+            try (JsonParser parser = factory.createParser(buffer, offset, length)) {
+                JsonToken token = parser.nextToken();
+                if (token == null) {
+                    return;
+                }
+                if (token != JsonToken.START_OBJECT) {
+                    malformedCount++;
+                    return;
+                }
+                type = readType(parser);
+            } catch (JsonProcessingException e) {
+                malformedCount++;
+                return;
+            }
+            event.reset(buffer, offset, length, type);
+
+            Consumer<LazyEvent> handler = type == null ? null : handlers.get(type);
+            try {
+                if (handler != null) {
+                    handler.accept(event);
+                } else if (fallback == null || !fallback.test(event.body())) {
+                    unhandledCount++;
+                }
+            } catch (MalformedEventException e) {
+                malformedCount++;
+                return;
+            }
+            eventCount++;
+        }
+
+        private static String readType(JsonParser parser) throws IOException {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (name.equals("type")) {
+                    return value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+
+        /**
+         * Events that were well formed, whether or not anything took them.  Every line other than a
+         * blank one counts either here or as malformed, never both.
+         */
+        public long getEventCount() {
+            return eventCount;
+        }
+
+        /**
+         * Events that no handler or fallback took.
+         */
+        public long getUnhandledCount() {
+            return unhandledCount;
+        }
+
+        /**
+         * Lines that were skipped because they are not JSON objects.
+         */
+        public long getMalformedCount() {
+            return malformedCount;
+        }
+
+        public long getBodiesBuilt() {
+            return event.bodiesBuilt;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String EVENTS =
+            "{\"type\":\"hello\",\"name\":\"world\"}\n" +
+            "{\"id\":1,\"nested\":{\"type\":\"inner\"},\"type\":\"goodbye\"}\n" +
+            "\n" +
+            "{\"type\":\"hola\",\"padding\":\"" + String.join("", Collections.nCopies(100, "x")) + "\"}\r\n" +
+            "{\"type\":\"unknown\"}\n" +
+            "{\"type\":7}\n" +
+            "{\"type\":\"hello\",\"name\":\"again\"}";
+
+    @Test
+    public void routesByTypeAndParsesBodiesLazily() throws IOException {
+        List<String> handled = new ArrayList<>();
+        EventIngester ingester = new EventIngester(16)
+                .onBody("hello", body -> handled.add("Hello " + body.get("name").asText()))
+                .on("goodbye", event -> handled.add("Goodbye"))
+                .on("hello", event -> handled.add("Second Hello"))
+                .fallback(new CommandPatternTest.IndexedChain().addHandler("hola", node -> handled.add("Hola")));
+
+        ingester.ingest(new ByteArrayInputStream(EVENTS.getBytes(UTF_8)));
+
+        assertThat(handled, contains("Hello world", "Goodbye", "Hola", "Hello again"));
+        assertThat(ingester.getEventCount(), equalTo(6L));
+        assertThat(ingester.getUnhandledCount(), equalTo(2L));
+        assertThat(ingester.getBodiesBuilt(), equalTo(5L));
+    }
+
+    @Test
+    public void skipsMalformedLinesAndFallsBackOnMissingTypes() throws IOException {
+        List<String> handled = new ArrayList<>();
+        EventIngester ingester = new EventIngester()
+                .onBody("hello", body -> handled.add("Hello " + body.get("name").asText()))
+                .fallback(body -> body.has("name") && handled.add("Untyped " + body.get("name").asText()));
+
+        ingester.ingest(new ByteArrayInputStream((
+                "{\"type\":\"hello\",\"name\":\"world\"}\n" +
+                "{\"type\":\n" +
+                "{\"type\":\"hello\",\"name\":}\n" +
+                "{\"name\":\"nobody\"}\n" +
+                "[1,2,3]\n" +
+                "{\"type\":\"hello\",\"name\":\"again\"}").getBytes(UTF_8)));
+
+        assertThat(handled, contains("Hello world", "Untyped nobody", "Hello again"));
+        assertThat(ingester.getMalformedCount(), equalTo(3L));
+        assertThat(ingester.getEventCount(), equalTo(3L));
+        assertThat(ingester.getUnhandledCount(), equalTo(0L));
+    }
+
+    @Test
+    public void ingestsFiles() throws IOException {
+        Path path = folder.newFile("events.ndjson").toPath();
+        Files.write(path, EVENTS.getBytes(UTF_8));
+        List<String> types = new ArrayList<>();
+
+        EventIngester ingester = new EventIngester()
+                .on("hello", event -> types.add(event.getType()))
+                .on("goodbye", event -> types.add(event.getType()));
+        ingester.ingest(path);
+
+        assertThat(types, contains("hello", "goodbye", "hello"));
+        assertThat(ingester.getBodiesBuilt(), equalTo(0L));
+    }
+}
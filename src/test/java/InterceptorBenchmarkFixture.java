@@ -0,0 +1,79 @@
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.matcher.Matchers;
+
+import benchmarks.InterceptorBenchmark;
+
+/**
+ * Builds the subjects of benchmarks.InterceptorBenchmark.
+ */
+public class InterceptorBenchmarkFixture implements InterceptorBenchmark.Fixture {
+
+  /**
+   * MethodInterceptorTest.ExampleMethods without the random sleep, which would swamp the interceptors.
+   */
+  @MethodInterceptorTest.Tracked
+  public static class BenchmarkMethods implements InterceptorBenchmark.Calls {
+    public int plain() { return 1; }
+
+    @MethodInterceptorTest.Count
+    public int counted() { return 1; }
+
+    @MethodInterceptorTest.Timed
+    public int timed() { return 1; }
+
+    @MethodInterceptorTest.Count
+    @MethodInterceptorTest.Timed
+    public int both() { return 1; }
+  }
+
+  MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+
+  @Override
+  public InterceptorBenchmark.Calls direct() {
+    return new BenchmarkMethods();
+  }
+
+  @Override
+  public InterceptorBenchmark.Calls proxied() {
+    return Guice.createInjector(new AbstractModule() {
+      @Override public void configure() {
+        bindInterceptor(Matchers.annotatedWith(MethodInterceptorTest.Tracked.class), Matchers.any(), i -> i.proceed());
+      }
+    }).getInstance(BenchmarkMethods.class);
+  }
+
+  @Override
+  public InterceptorBenchmark.Calls annotated() {
+    return Guice.createInjector(new AbstractModule() {
+      @Override public void configure() {
+        bindInterceptor(Matchers.annotatedWith(MethodInterceptorTest.Tracked.class),Matchers.annotatedWith(MethodInterceptorTest.Count.class), i -> {
+          return registry.counter(i.getMethod()).count(i::proceed);
+        });
+
+        bindInterceptor(Matchers.annotatedWith(MethodInterceptorTest.Tracked.class),Matchers.annotatedWith(MethodInterceptorTest.Timed.class), i -> {
+          return registry.timer(i.getMethod()).time(i::proceed);
+        });
+      }
+    }).getInstance(BenchmarkMethods.class);
+  }
+
+  @Override
+  public InterceptorBenchmark.Calls any() {
+    return Guice.createInjector(new AbstractModule() {
+      @Override public void configure() {
+        bindInterceptor(Matchers.annotatedWith(MethodInterceptorTest.Tracked.class),Matchers.any(), i -> {
+          return registry.counter(i.getMethod()).count(i::proceed);
+        }, i -> {
+          return registry.timer(i.getMethod()).time(i::proceed);
+        });
+      }
+    }).getInstance(BenchmarkMethods.class);
+  }
+
+  @Override
+  public InterceptorBenchmark.Calls tracked() {
+    return Guice.createInjector(new MethodInterceptorTest.TrackedModule(registry, BenchmarkMethods.class))
+      .getInstance(BenchmarkMethods.class);
+  }
+}
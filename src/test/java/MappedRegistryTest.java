@@ -0,0 +1,392 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Maps;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Mirrors a registry's slots into a memory mapped file, so another process on the same host can
+ * read recent metrics straight out of the page cache without RPC or JSON encoding.
+ */
+public class MappedRegistryTest {
+
+  /**
+   * Mirrors every registered slot of a registry into a memory mapped file with a fixed layout.
+   * All values are big endian longs unless noted.  The file is at most Integer.MAX_VALUE bytes,
+   * the most one MappedByteBuffer can address, which bounds the capacity.
+   *
+   * <pre>
+   * header, HEADER_SIZE bytes
+   *   0  int  MAGIC
+   *   4  int  VERSION
+   *   8  int  slot capacity
+   *  12  int  slots in use
+   *  16  int  histogram bucket count
+   *  20  int  slot size in bytes
+   *  24  long last publish time, epoch millis
+   * slot n, at HEADER_SIZE + n * slot size
+   *   0  long checksum of the rest of the slot, see checksum()
+   *   8  short name length, then up to NAME_SIZE - 2 bytes of UTF-8 name
+   * 136  long metrics the slot has, HAS_COUNTER | HAS_TIMER; the fields of the others are zero
+   * 144  long counter value
+   * 152  long timer count
+   * 160  long timer sum, nanoseconds
+   * 168  long timer max, nanoseconds
+   * 176  long[bucket count] timer histogram buckets, see MethodInterceptorTest.Histogram
+   * </pre>
+   *
+   * This is a mirror, not the metrics' storage.  The counters and histograms stay in their striped,
+   * lock free form on the heap, so recording costs what it does without the file, and publish()
+   * copies them into the file from a single thread.  A reader sees values as of the last publish,
+   * and each publish walks every slot.
+   *
+   * The copy is made with plain ByteBuffer stores, which promise nothing about the order another
+   * process sees them in.  So rather than a sequence lock, which depends on that order, the
+   * publisher writes a checksum of each slot after its fields, and a reader rereads a slot until
+   * the checksum matches what it read.
+   *
+   * Opening a file that already exists zeroes it first, so nothing from an earlier run, such as a
+   * slot left odd by a publisher that died mid write or the names of its slots, carries over.
+   */
+  public static class MappedRegistry implements Closeable {
+    public static final int MAGIC = 0x4D455452;
+    public static final int VERSION = 3;
+    public static final int HEADER_SIZE = 64;
+    public static final int NAME_SIZE = 128;
+    public static final int CHECKSUM_OFFSET = 0;
+    public static final int NAME_OFFSET = 8;
+    public static final int METRICS_OFFSET = NAME_OFFSET + NAME_SIZE;
+    public static final int COUNTER_OFFSET = METRICS_OFFSET + 8;
+    public static final int TIMER_COUNT_OFFSET = COUNTER_OFFSET + 8;
+    public static final int TIMER_SUM_OFFSET = TIMER_COUNT_OFFSET + 8;
+    public static final int TIMER_MAX_OFFSET = TIMER_SUM_OFFSET + 8;
+    public static final int BUCKETS_OFFSET = TIMER_MAX_OFFSET + 8;
+    public static final int SLOT_SIZE = BUCKETS_OFFSET + 8 * MethodInterceptorTest.Histogram.BUCKET_COUNT;
+    public static final long HAS_COUNTER = 1;
+    public static final long HAS_TIMER = 2;
+
+    private MethodInterceptorTest.Registry registry;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private MethodInterceptorTest.Histogram.Snapshot snapshot = new MethodInterceptorTest.Histogram.Snapshot();
+    private ScheduledExecutorService executor;
+
+    /**
+     * @throws IllegalArgumentException if capacity slots would not fit in one mapped buffer.
+     */
+    public MappedRegistry(MethodInterceptorTest.Registry registry, Path path, int capacity) throws IOException {
+      long size = HEADER_SIZE + (long)capacity * SLOT_SIZE;
+      if( capacity < 0 || size > Integer.MAX_VALUE ) {
+        throw new IllegalArgumentException("capacity must be between 0 and "+(Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE+", not "+capacity);
+      }
+      this.registry = registry;
+      this.capacity = capacity;
+      this.channel = FileChannel.open(path, CREATE, READ, WRITE);
+      if( channel.size() > size ) {
+        channel.truncate(size);
+      }
+      this.buffer = channel.map(MapMode.READ_WRITE, 0, size);
+      buffer.putInt(0, 0);
+      for( int i = 8; i < size; i += 8 ) {
+        buffer.putLong(i, 0L);
+      }
+      buffer.putInt(4, VERSION);
+      buffer.putInt(8, capacity);
+      buffer.putInt(12, 0);
+      buffer.putInt(16, MethodInterceptorTest.Histogram.BUCKET_COUNT);
+      buffer.putInt(20, SLOT_SIZE);
+      buffer.putInt(0, MAGIC);
+    }
+
+    public MappedRegistry start(long period, TimeUnit unit) {
+      executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mapped-registry");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.scheduleAtFixedRate(this::publish, 0, period, unit);
+      return this;
+    }
+
+    /**
+     * Copies every registered slot into the file.  Slots past the file's capacity are skipped.
+     */
+    public synchronized void publish() {
+      int slotCount = Math.min(registry.getSlotCount(), capacity);
+      for( int slot = 0; slot < slotCount; slot++ ) {
+        int base = offset(slot, SLOT_SIZE);
+        if( buffer.getShort(base + NAME_OFFSET) == 0 ) {
+          byte[] name = MethodInterceptorTest.Registry.name(registry.method(slot)).getBytes(UTF_8);
+          int length = Math.min(name.length, NAME_SIZE - 2);
+          buffer.position(base + NAME_OFFSET + 2);
+          buffer.put(name, 0, length);
+          buffer.putShort(base + NAME_OFFSET, (short)length);
+        }
+        MethodInterceptorTest.Counter counter = registry.counter(slot);
+        MethodInterceptorTest.Timer timer = registry.timer(slot);
+        buffer.putLong(base + METRICS_OFFSET, (counter != null ? HAS_COUNTER : 0) | (timer != null ? HAS_TIMER : 0));
+        if( counter != null ) {
+          buffer.putLong(base + COUNTER_OFFSET, counter.getValue());
+        }
+        if( timer != null ) {
+          timer.times.snapshot(snapshot);
+          buffer.putLong(base + TIMER_COUNT_OFFSET, snapshot.getCount());
+          buffer.putLong(base + TIMER_SUM_OFFSET, snapshot.sum);
+          buffer.putLong(base + TIMER_MAX_OFFSET, snapshot.getMax());
+          for( int i = 0; i < MethodInterceptorTest.Histogram.BUCKET_COUNT; i++ ) {
+            buffer.putLong(base + BUCKETS_OFFSET + 8 * i, snapshot.counts[i]);
+          }
+        }
+        buffer.putLong(base + CHECKSUM_OFFSET, checksum(buffer, base, SLOT_SIZE));
+      }
+      buffer.putInt(12, slotCount);
+      buffer.putLong(24, System.currentTimeMillis());
+    }
+
+    static int offset(int slot, int slotSize) {
+      return Math.toIntExact(HEADER_SIZE + (long)slot * slotSize);
+    }
+
+    /**
+     * Mixes every long of a slot after its checksum, name included, so a slot read while it was
+     * being written, in any order, almost certainly does not match.  Never zero, so a slot that was
+     * never written does not match either.
+     */
+    static long checksum(ByteBuffer buffer, int base, int slotSize) {
+      long hash = 0x9E3779B97F4A7C15L;
+      for( int i = NAME_OFFSET; i < slotSize; i += 8 ) {
+        hash = (hash ^ buffer.getLong(base + i)) * 0xBF58476D1CE4E5B9L;
+        hash ^= hash >>> 31;
+      }
+      return hash == 0 ? 1 : hash;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if( executor != null ) {
+        executor.shutdownNow();
+      }
+      publish();
+      buffer.force();
+      channel.close();
+    }
+  }
+
+  /**
+   * Reads a file written by MappedRegistry.  This is what a scraping process would run; it only
+   * depends on the layout, not on the registry.
+   */
+  public static class MappedMetricsReader implements Closeable {
+    /** How many times a slot is reread before a publisher is taken to have died writing it. */
+    public static final int MAX_ATTEMPTS = 10_000;
+
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private int slotSize;
+    private int bucketCount;
+
+    public MappedMetricsReader(Path path) throws IOException {
+      this.channel = FileChannel.open(path, READ);
+      this.buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      if( buffer.getInt(0) != MappedRegistry.MAGIC || buffer.getInt(4) != MappedRegistry.VERSION ) {
+        throw new IOException("not a version "+MappedRegistry.VERSION+" metrics file: "+path);
+      }
+      this.slotSize = buffer.getInt(20);
+      this.bucketCount = buffer.getInt(16);
+    }
+
+    public long getLastPublished() {
+      return buffer.getLong(24);
+    }
+
+    /**
+     * Returns the counter value of every published slot that has a counter by name, retrying
+     * slots that were being written while they were read.
+     *
+     * @throws IllegalStateException if a slot is still being written after MAX_ATTEMPTS reads.
+     */
+    public Map<String, Long> getCounters() {
+      Map<String, Long> counters = Maps.newLinkedHashMap();
+      int slotCount = buffer.getInt(12);
+      for( int slot = 0; slot < slotCount; slot++ ) {
+        int base = MappedRegistry.offset(slot, slotSize);
+        for( int attempt = 0; ; attempt++ ) {
+          ByteBuffer copy = copy(base);
+          long metrics = copy.getLong(MappedRegistry.METRICS_OFFSET);
+          String name = readName(copy);
+          long value = copy.getLong(MappedRegistry.COUNTER_OFFSET);
+          if( matches(copy) ) {
+            if( (metrics & MappedRegistry.HAS_COUNTER) != 0 ) {
+              counters.put(name, value);
+            }
+            break;
+          }
+          retry(slot, attempt);
+        }
+      }
+      return counters;
+    }
+
+    /**
+     * Returns the timer bucket counts of a slot, or nothing if the slot has no timer, retrying if
+     * it was being written while it was read.
+     *
+     * @throws IllegalStateException if the slot is still being written after MAX_ATTEMPTS reads.
+     */
+    public Optional<long[]> getTimerBuckets(int slot) {
+      int base = MappedRegistry.offset(slot, slotSize);
+      long[] buckets = new long[bucketCount];
+      for( int attempt = 0; ; attempt++ ) {
+        ByteBuffer copy = copy(base);
+        long metrics = copy.getLong(MappedRegistry.METRICS_OFFSET);
+        for( int i = 0; i < bucketCount; i++ ) {
+          buckets[i] = copy.getLong(MappedRegistry.BUCKETS_OFFSET + 8 * i);
+        }
+        if( matches(copy) ) {
+          return (metrics & MappedRegistry.HAS_TIMER) != 0 ? Optional.of(buckets) : Optional.empty();
+        }
+        retry(slot, attempt);
+      }
+    }
+
+    private static void retry(int slot, int attempt) {
+      if( attempt + 1 >= MAX_ATTEMPTS ) {
+        throw new IllegalStateException("slot "+slot+" was still being written after "+MAX_ATTEMPTS+" reads.");
+      }
+      Thread.yield();
+    }
+
+    /**
+     * Copies a slot out of the file, so the checksum is checked against exactly the bytes that are
+     * then read, however the file changes meanwhile.
+     */
+    private ByteBuffer copy(int base) {
+      ByteBuffer slot = buffer.duplicate();
+      slot.limit(base + slotSize).position(base);
+      return ByteBuffer.allocate(slotSize).put(slot);
+    }
+
+    private boolean matches(ByteBuffer copy) {
+      return copy.getLong(MappedRegistry.CHECKSUM_OFFSET) == MappedRegistry.checksum(copy, 0, slotSize);
+    }
+
+    private static String readName(ByteBuffer copy) {
+      int length = copy.getShort(MappedRegistry.NAME_OFFSET);
+      byte[] name = new byte[length];
+      for( int i = 0; i < length; i++ ) {
+        name[i] = copy.get(MappedRegistry.NAME_OFFSET + 2 + i);
+      }
+      return new String(name, UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void readsPublishedMetrics() throws Exception {
+    MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+    Injector injector = Guice.createInjector(new MethodInterceptorTest.TrackedModule(registry, MethodInterceptorTest.ExampleMethods.class));
+    Method voidMethod = MethodInterceptorTest.ExampleMethods.class.getMethod("voidMethod");
+    Path path = folder.newFile("metrics.bin").toPath();
+
+    MethodInterceptorTest.ExampleMethods m = injector.getInstance(MethodInterceptorTest.ExampleMethods.class);
+    m.voidMethod();
+    m.voidMethod();
+    m.intMethod();
+
+    try( MappedRegistry mapped = new MappedRegistry(registry, path, 16) ) {
+      mapped.publish();
+
+      try( MappedMetricsReader reader = new MappedMetricsReader(path) ) {
+        Map<String, Long> counters = reader.getCounters();
+
+        assertThat(counters.get(MethodInterceptorTest.Registry.name(voidMethod)), equalTo(2L));
+        assertThat(reader.getLastPublished(), greaterThan(0L));
+
+        long[] buckets = reader.getTimerBuckets(registry.register(voidMethod)).get();
+        assertThat(Arrays.stream(buckets).sum(), equalTo(2L));
+
+        m.voidMethod();
+        mapped.publish();
+
+        assertThat(reader.getCounters().get(MethodInterceptorTest.Registry.name(voidMethod)), equalTo(3L));
+      }
+    }
+  }
+
+  @Test
+  public void reopensFileFromEarlierRun() throws Exception {
+    Method voidMethod = MethodInterceptorTest.ExampleMethods.class.getMethod("voidMethod");
+    Method intMethod = MethodInterceptorTest.ExampleMethods.class.getMethod("intMethod");
+    Path path = folder.newFile("metrics.bin").toPath();
+
+    MethodInterceptorTest.Registry earlier = new MethodInterceptorTest.Registry();
+    earlier.counter(earlier.register(voidMethod)).increment();
+    new MappedRegistry(earlier, path, 16).close();
+    // as if the publisher had died halfway through writing the first slot
+    try( FileChannel channel = FileChannel.open(path, READ, WRITE) ) {
+      channel.map(MapMode.READ_WRITE, 0, MappedRegistry.HEADER_SIZE + 8).putLong(MappedRegistry.HEADER_SIZE + MappedRegistry.CHECKSUM_OFFSET, 7L);
+    }
+    try( MappedMetricsReader reader = new MappedMetricsReader(path) ) {
+      try {
+        reader.getCounters();
+        throw new AssertionError("expected the half written slot to be reported");
+      } catch( IllegalStateException expected ) {
+      }
+    }
+
+    MethodInterceptorTest.Registry later = new MethodInterceptorTest.Registry();
+    later.counter(later.register(intMethod)).increment();
+    later.register(MethodInterceptorTest.MeteredMethods.class.getMethod("meteredMethod"));
+    try( MappedRegistry mapped = new MappedRegistry(later, path, 16) ) {
+      mapped.publish();
+
+      try( MappedMetricsReader reader = new MappedMetricsReader(path) ) {
+        Map<String, Long> counters = reader.getCounters();
+
+        assertThat(counters.keySet(), contains(MethodInterceptorTest.Registry.name(intMethod)));
+        assertThat(counters.get(MethodInterceptorTest.Registry.name(intMethod)), equalTo(1L));
+        assertThat(reader.getTimerBuckets(0).isPresent(), equalTo(true));
+        assertThat(reader.getTimerBuckets(1).isPresent(), equalTo(false));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsCapacityPastOneMapping() throws Exception {
+    new MappedRegistry(new MethodInterceptorTest.Registry(), folder.newFile("metrics.bin").toPath(), Integer.MAX_VALUE / MappedRegistry.SLOT_SIZE + 1);
+  }
+}
@@ -1,24 +1,69 @@
+import static com.github.fge.lambdas.Throwing.consumer;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalDouble;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import com.google.inject.matcher.Matcher;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
 import com.google.inject.matcher.Matchers;
 import org.junit.Test;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.fge.lambdas.Throwing;
-import com.google.common.collect.EvictingQueue;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
@@ -31,7 +76,16 @@ public class MethodInterceptorTest {
 
   @Target(ElementType.METHOD)
   @Retention(RetentionPolicy.RUNTIME)
-  public static @interface Timed {};
+  public static @interface Timed {
+    /**
+     * Times roughly one in this many calls, chosen at random.  The rest go straight to the method.
+     */
+    int sampleEvery() default 1;
+  };
+
+  @Target(ElementType.METHOD)
+  @Retention(RetentionPolicy.RUNTIME)
+  public static @interface Metered {};
 
   @Target(ElementType.TYPE)
   @Retention(RetentionPolicy.RUNTIME)
@@ -51,6 +105,29 @@ public class MethodInterceptorTest {
     public void unannotatedMethod() { randomSleep(); }
   }
 
+  @Tracked
+  public static class AsyncMethods {
+    @Count
+    @Timed
+    public CompletableFuture<Integer> asyncMethod(CompletableFuture<Integer> result) { return result; }
+
+    @Count
+    public int failingMethod() { throw new IllegalStateException("failed"); }
+  }
+
+  @Tracked
+  public static class MeteredMethods {
+    @Metered
+    public int meteredMethod() { return 1; }
+  }
+
+  @Tracked
+  public static class SampledMethods {
+    @Count
+    @Timed(sampleEvery = 10)
+    public int fastMethod() { return 1; }
+  }
+
   @Test
   public void simpleInterceptor() throws NoSuchMethodException, SecurityException {
     Registry registry = new Registry();
@@ -75,13 +152,13 @@ public class MethodInterceptorTest {
     m.intMethod();
     m.voidMethod();
     
-    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1));
-    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(1));
+    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1L));
+    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(1L));
     
     m.voidMethod();
 
-    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1));
-    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(2));
+    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1L));
+    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(2L));
   }
   
   @Test
@@ -110,13 +187,13 @@ public class MethodInterceptorTest {
     m.intMethod();
     m.voidMethod();
 
-    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1));
-    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(1));
+    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1L));
+    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(1L));
     
     m.voidMethod();
 
-    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1));
-    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(2));
+    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1L));
+    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(2L));
 
     assertThat(registry.getTimer(intMethod).get().getValue().getAsDouble(), greaterThan(0.0d));
     assertThat(registry.getTimer(voidMethod).get().getValue().getAsDouble(), greaterThan(0.0d));
@@ -148,64 +225,782 @@ public class MethodInterceptorTest {
     m.voidMethod();
     m.unannotatedMethod();
 
-    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1));
-    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(1));
-    assertThat(registry.getCounter(unannotatedMethod).get().getValue(), equalTo(1));
+    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1L));
+    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(1L));
+    assertThat(registry.getCounter(unannotatedMethod).get().getValue(), equalTo(1L));
 
     m.voidMethod();
 
-    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1));
-    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(2));
+    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1L));
+    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(2L));
 
     assertThat(registry.getTimer(intMethod).get().getValue().getAsDouble(), greaterThan(0.0d));
     assertThat(registry.getTimer(voidMethod).get().getValue().getAsDouble(), greaterThan(0.0d));
   }
   
+  @Test
+  public void slotInterceptors() throws NoSuchMethodException, SecurityException {
+    Registry registry = new Registry();
+    Injector injector = Guice.createInjector(new TrackedModule(registry, ExampleMethods.class, AsyncMethods.class, MeteredMethods.class));
+
+    Method intMethod = ExampleMethods.class.getMethod("intMethod");
+    Method voidMethod = ExampleMethods.class.getMethod("voidMethod");
+    Method unannotatedMethod = ExampleMethods.class.getMethod("unannotatedMethod");
+    Method failingMethod = AsyncMethods.class.getMethod("failingMethod");
+    Method meteredMethod = MeteredMethods.class.getMethod("meteredMethod");
+
+    ExampleMethods m = injector.getInstance(ExampleMethods.class);
+
+    assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(0L));
+    assertThat(registry.getCounter(unannotatedMethod).isPresent(), equalTo(false));
+    assertThat(registry.getMeter(intMethod).isPresent(), equalTo(false));
+    assertThat(registry.getCounter(failingMethod).isPresent(), equalTo(true));
+    assertThat(registry.getTimer(failingMethod).isPresent(), equalTo(false));
+    assertThat(registry.getMeter(meteredMethod).isPresent(), equalTo(true));
+    assertThat(registry.getCounter(meteredMethod).isPresent(), equalTo(false));
+    assertThat(registry.getFailures(meteredMethod).isPresent(), equalTo(false));
+    assertThat(registry.getTimers().keySet(), containsInAnyOrder(intMethod, voidMethod, AsyncMethods.class.getMethod("asyncMethod", CompletableFuture.class)));
+
+    m.intMethod();
+    m.voidMethod();
+    m.voidMethod();
+    m.unannotatedMethod();
+
+    assertThat(registry.counter(registry.register(intMethod)).getValue(), equalTo(1L));
+    assertThat(registry.getCounter(voidMethod).get().getValue(), equalTo(2L));
+    assertThat(registry.getCounter(unannotatedMethod).isPresent(), equalTo(false));
+    assertThat(registry.getTimer(voidMethod).get().times.getCount(), equalTo(2L));
+  }
+
+  @Test
+  public void sampledTimer() throws NoSuchMethodException, SecurityException {
+    Registry registry = new Registry();
+    Injector injector = Guice.createInjector(new TrackedModule(registry, SampledMethods.class));
+    Method fastMethod = SampledMethods.class.getMethod("fastMethod");
+
+    SampledMethods m = injector.getInstance(SampledMethods.class);
+    range(0, 10000).forEach(i -> m.fastMethod());
+
+    assertThat(registry.getCounter(fastMethod).get().getValue(), equalTo(10000L));
+    assertThat(registry.getTimer(fastMethod).get().times.getCount(), greaterThan(700L));
+    assertThat(registry.getTimer(fastMethod).get().times.getCount(), lessThan(1300L));
+  }
+
+  @Test
+  public void meteredInterceptor() throws NoSuchMethodException, SecurityException {
+    Registry registry = new Registry();
+    Injector injector = Guice.createInjector(new AbstractModule() {
+      @Override public void configure() {
+        bindInterceptor(Matchers.annotatedWith(Tracked.class),Matchers.annotatedWith(Metered.class), i -> {
+          return registry.meter(i.getMethod()).mark(i::proceed);
+        });
+      }
+    });
+    Method meteredMethod = MeteredMethods.class.getMethod("meteredMethod");
+
+    MeteredMethods m = injector.getInstance(MeteredMethods.class);
+
+    assertThat(registry.getMeter(meteredMethod).isPresent(), equalTo(false));
+
+    m.meteredMethod();
+    m.meteredMethod();
+
+    assertThat(registry.getMeter(meteredMethod).get().getCount(), equalTo(2L));
+  }
+
+  @Test
+  public void meterRates() {
+    AtomicLong clock = new AtomicLong();
+    Meter meter = new Meter(clock::get);
+
+    range(0, 300).forEach(i -> meter.mark());
+    assertThat(meter.getOneMinuteRate(), equalTo(0.0d));
+
+    clock.addAndGet(Meter.TICK_INTERVAL);
+
+    assertThat(meter.getCount(), equalTo(300L));
+    assertThat(meter.getOneMinuteRate(), equalTo(60.0d));
+    assertThat(meter.getFifteenMinuteRate(), equalTo(60.0d));
+    assertThat(meter.getWindowRate(), equalTo(5.0d));
+
+    clock.addAndGet(Meter.TICK_INTERVAL * 12);
+
+    assertThat(meter.getOneMinuteRate(), lessThan(60.0d * Math.exp(-1) + 0.001d));
+    assertThat(meter.getFifteenMinuteRate(), greaterThan(meter.getFiveMinuteRate()));
+    assertThat(meter.getWindowRate(), equalTo(0.0d));
+  }
+
+  @Test
+  public void meterTicksWithoutReads() {
+    AtomicLong clock = new AtomicLong();
+    Meter meter = new Meter(clock::get);
+
+    range(0, 300).forEach(i -> meter.mark());
+    clock.addAndGet(Meter.TICK_INTERVAL);
+    range(0, 300).forEach(i -> meter.mark());
+    clock.addAndGet(Meter.TICK_INTERVAL);
+
+    assertThat(meter.getCount(), equalTo(600L));
+    assertThat(meter.getOneMinuteRate(), equalTo(60.0d));
+    assertThat(meter.getFifteenMinuteRate(), equalTo(60.0d));
+  }
+
+  @Test
+  public void meterTicksDuringMarksLoseNothing() throws InterruptedException {
+    AtomicLong clock = new AtomicLong();
+    Meter meter = new Meter(clock::get);
+    AtomicLong marked = new AtomicLong();
+
+    runConcurrently(4, 50_000, () -> {
+      meter.mark();
+      if( marked.incrementAndGet() % 20_000 == 0 ) {
+        clock.addAndGet(Meter.TICK_INTERVAL);
+      }
+    });
+    clock.addAndGet(Meter.TICK_INTERVAL);
+
+    assertThat(meter.getCount(), equalTo(200_000L));
+    assertThat(Math.round(meter.getWindowRate() * Meter.WINDOW_TICKS * Meter.TICK_INTERVAL / 1e9d), equalTo(200_000L));
+  }
+
+  /**
+   * Drives the interceptors with a reusable invocation and checks the thread's allocation counter,
+   * so Guice's own per call MethodInvocation is left out of the measurement.
+   */
+  @Test
+  public void interceptorsDoNotAllocate() throws Throwable {
+    Registry registry = new Registry();
+    Method intMethod = ExampleMethods.class.getMethod("intMethod");
+    int slot = registry.register(intMethod, Registry.Metric.COUNT, Registry.Metric.TIME, Registry.Metric.METER);
+    MethodInterceptor[] interceptors = {
+      new CountingInterceptor(registry, slot),
+      new MeteringInterceptor(registry, slot),
+      new TimingInterceptor(registry, slot, 1),
+      new TimingInterceptor(registry, slot, 10)
+    };
+    MethodInvocation invocation = new ConstantInvocation(intMethod, "result");
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    for( int i = 0; i < 200000; i++ ) {
+      for( MethodInterceptor interceptor : interceptors ) {
+        interceptor.invoke(invocation);
+      }
+    }
+
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for( int i = 0; i < 100000; i++ ) {
+      for( MethodInterceptor interceptor : interceptors ) {
+        interceptor.invoke(invocation);
+      }
+    }
+    long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+    assertThat(registry.counter(slot).getValue(), equalTo(300000L));
+    assertThat(allocated, lessThan(1024L));
+  }
+
+  public static class ConstantInvocation implements MethodInvocation {
+    private Method method;
+    private Object result;
+
+    public ConstantInvocation(Method method, Object result) {
+      this.method = method;
+      this.result = result;
+    }
+
+    @Override public Method getMethod() { return method; }
+    @Override public Object[] getArguments() { return null; }
+    @Override public Object proceed() { return result; }
+    @Override public Object getThis() { return null; }
+    @Override public AccessibleObject getStaticPart() { return method; }
+  }
+
+  @Test
+  public void asyncInterceptors() throws NoSuchMethodException, SecurityException {
+    Registry registry = new Registry();
+    Injector injector = Guice.createInjector(new TrackedModule(registry, AsyncMethods.class));
+    Method asyncMethod = AsyncMethods.class.getMethod("asyncMethod", CompletableFuture.class);
+    Method failingMethod = AsyncMethods.class.getMethod("failingMethod");
+
+    AsyncMethods m = injector.getInstance(AsyncMethods.class);
+    CompletableFuture<Integer> succeeds = m.asyncMethod(new CompletableFuture<>());
+    CompletableFuture<Integer> fails = m.asyncMethod(new CompletableFuture<>());
+
+    assertThat(registry.getCounter(asyncMethod).get().getValue(), equalTo(2L));
+    assertThat(registry.getTimer(asyncMethod).get().times.getCount(), equalTo(0L));
+
+    randomSleep();
+    succeeds.complete(1);
+
+    assertThat(registry.getTimer(asyncMethod).get().times.getCount(), equalTo(1L));
+    assertThat(registry.getTimer(asyncMethod).get().getMax(), greaterThan(MILLISECONDS.toNanos(1)));
+    assertThat(registry.getFailures(asyncMethod).get().getValue(), equalTo(0L));
+
+    fails.completeExceptionally(new IllegalStateException("failed"));
+
+    assertThat(registry.getTimer(asyncMethod).get().times.getCount(), equalTo(2L));
+    assertThat(registry.getFailures(asyncMethod).get().getValue(), equalTo(1L));
+
+    try {
+      m.failingMethod();
+    } catch( IllegalStateException expected ) {}
+
+    assertThat(registry.getCounter(failingMethod).get().getValue(), equalTo(1L));
+    assertThat(registry.getFailures(failingMethod).get().getValue(), equalTo(1L));
+  }
+
+  @Test
+  public void jsonReport() throws Exception {
+    Registry registry = new Registry();
+    Injector injector = Guice.createInjector(new TrackedModule(registry, ExampleMethods.class));
+    ExampleMethods m = injector.getInstance(ExampleMethods.class);
+
+    m.intMethod();
+    m.voidMethod();
+    m.voidMethod();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try( JsonReporter reporter = new JsonReporter(registry, out) ) {
+      reporter.report();
+    }
+
+    JsonNode report = new ObjectMapper().readTree(out.toByteArray());
+    String voidMethod = Registry.name(ExampleMethods.class.getMethod("voidMethod"));
+
+    assertThat(report.get("counters").get(voidMethod).asLong(), equalTo(2L));
+    assertThat(report.get("timers").get(voidMethod).get("count").asLong(), equalTo(2L));
+    assertThat(report.get("timers").get(voidMethod).get("p99").asLong(), greaterThan(0L));
+  }
+
+  @Test
+  public void scheduledJsonReports() throws Throwable {
+    Registry registry = new Registry();
+    registry.counter(ExampleMethods.class.getMethod("intMethod")).count(() -> 1);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try( JsonReporter reporter = new JsonReporter(registry, out).start(10, MILLISECONDS) ) {
+      MILLISECONDS.sleep(100);
+    }
+
+    List<JsonNode> reports = Lists.newArrayList(new ObjectMapper().readerFor(JsonNode.class).readValues(out.toByteArray()));
+    assertThat(reports.size(), greaterThan(1));
+  }
+
+  @Test
+  public void scheduledReportsOutliveAFailedWrite() throws Throwable {
+    Registry registry = new Registry();
+    registry.counter(ExampleMethods.class.getMethod("intMethod")).count(() -> 1);
+
+    AtomicInteger flushes = new AtomicInteger();
+    ByteArrayOutputStream out = new ByteArrayOutputStream() {
+      @Override
+      public void flush() throws IOException {
+        if( flushes.incrementAndGet() == 1 ) {
+          reset();
+          throw new IOException("disk full");
+        }
+      }
+    };
+    try( JsonReporter reporter = new JsonReporter(registry, out).start(1, TimeUnit.SECONDS).start(10, MILLISECONDS) ) {
+      MILLISECONDS.sleep(100);
+      assertThat(reporter.getFailedReports(), equalTo(1L));
+    }
+
+    List<JsonNode> reports = Lists.newArrayList(new ObjectMapper().readerFor(JsonNode.class).readValues(out.toByteArray()));
+    assertThat(reports.size(), greaterThan(1));
+  }
+
+  @Test
+  public void histogramPercentiles() {
+    Histogram histogram = new AtomicHistogram();
+
+    range(1, 10001).forEach(histogram::record);
+
+    assertThat(histogram.getCount(), equalTo(10000L));
+    assertThat(histogram.getMax(), equalTo(10000L));
+    assertThat(histogram.getMean().getAsDouble(), equalTo(5000.5d));
+    assertWithin(histogram.getValueAtPercentile(50.0d), 5000L);
+    assertWithin(histogram.getValueAtPercentile(90.0d), 9000L);
+    assertWithin(histogram.getValueAtPercentile(99.0d), 9900L);
+    assertWithin(histogram.getValueAtPercentile(99.9d), 9990L);
+    assertThat(histogram.getValueAtPercentile(100.0d), equalTo(10000L));
+  }
+
+  @Test
+  public void histogramBucketsCoverAllValues() {
+    for( long value : new long[] {0, 1, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE} ) {
+      int index = Histogram.bucketIndex(value);
+      assertThat(Histogram.lowestEquivalentValue(index), lessThanOrEqualTo(value));
+      assertThat(Histogram.highestEquivalentValue(index), greaterThanOrEqualTo(value));
+    }
+    assertThat(Histogram.bucketIndex(Long.MAX_VALUE), equalTo(Histogram.BUCKET_COUNT - 1));
+  }
+
+  @Test
+  public void histogramRecordsConcurrently() throws Exception {
+    int loops = 10000;
+    int threadCount = 16;
+    Timer timer = new Timer();
+
+    Runnable r = () -> range(0, loops)
+      .forEach(i -> timer.times.record(i));
+
+    List<Thread> threadList = range(0, threadCount)
+      .mapToObj(t -> new Thread(r))
+      .collect(toList());
+
+    threadList.stream().forEach(Thread::start);
+    threadList.stream().forEach(consumer(Thread::join));
+
+    Histogram.Snapshot snapshot = timer.snapshot();
+    assertThat(snapshot.getCount(), equalTo((long)loops*threadCount));
+    assertThat(snapshot.getMax(), equalTo((long)loops - 1));
+    assertThat(snapshot.getValueAtPercentile(50.0d), lessThanOrEqualTo(snapshot.getValueAtPercentile(99.9d)));
+    assertThat(snapshot.getMax(), greaterThanOrEqualTo(snapshot.getValueAtPercentile(99.9d)));
+  }
+
+  @Test
+  public void counterCountsConcurrently() throws Exception {
+    int loops = 10000;
+    int threadCount = 16;
+    Counter counter = new AdderCounter();
+
+    runConcurrently(threadCount, loops, Throwing.runnable(() -> counter.count(() -> null)));
+
+    assertThat(counter.getValue(), equalTo((long)loops*threadCount));
+  }
+
+  /**
+   * Runs the action loops times on each of threadCount threads, all released at once.
+   */
+  private static void runConcurrently( int threadCount, int loops, Runnable action ) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    Runnable r = Throwing.runnable(() -> {
+      start.await();
+      for( int i = 0; i < loops; i++ ) {
+        action.run();
+      }
+    });
+
+    List<Thread> threadList = range(0, threadCount)
+      .mapToObj(t -> new Thread(r))
+      .collect(toList());
+
+    threadList.stream().forEach(Thread::start);
+    start.countDown();
+    threadList.stream().forEach(consumer(Thread::join));
+  }
+
+  private static void assertWithin( long actual, long expected ) {
+    assertThat(actual, greaterThanOrEqualTo(expected));
+    assertThat(actual, lessThanOrEqualTo(expected + expected / Histogram.SUB_BUCKET_COUNT));
+  }
+
   public static interface ThrowingCallable<T> {
     public T call() throws Throwable;
   }
   
-  public static class Counter {
-    AtomicInteger count = new AtomicInteger();
-    
-    public <T> T count( ThrowingCallable<T> c ) throws Throwable {
-      count.incrementAndGet();
+  /**
+   * Counts calls.  Implementations decide how concurrent increments are spread out.
+   */
+  public static interface Counter {
+    public default <T> T count( ThrowingCallable<T> c ) throws Throwable {
+      increment();
       return c.call();
     }
-    
-    public int getValue() {
-      return count.get();
+
+    public void increment();
+
+    public long getValue();
+  }
+
+  /**
+   * Counts calls into a LongAdder, which spreads concurrent increments over a set of
+   * cache line padded cells and only sums them when the value is read.
+   */
+  public static class AdderCounter implements Counter {
+    LongAdder count = new LongAdder();
+
+    @Override
+    public void increment() {
+      count.increment();
+    }
+
+    @Override
+    public long getValue() {
+      return count.sum();
     }
   }
   
   public static class Timer {
-    public EvictingQueue<Long> times = EvictingQueue.create(10);
+    public Histogram times;
+
+    public Timer() {
+      this(new AtomicHistogram());
+    }
+
+    public Timer( Histogram times ) {
+      this.times = times;
+    }
     
     public <T> T time( ThrowingCallable<T> c ) throws Throwable {
-      long startTime = System.currentTimeMillis();
+      long startTime = System.nanoTime();
       try {
         return c.call();
       } finally {
-        long endTime = System.currentTimeMillis();
-        times.add(endTime-startTime);
+        long endTime = System.nanoTime();
+        times.record(endTime-startTime);
       }
     }
+
+    public void record( long nanos ) {
+      times.record(nanos);
+    }
     
+    /**
+     * Returns true for a uniformly random one in sampleEvery calls.  Sampling at random rather than
+     * every Nth call keeps the recorded times an unbiased sample of all calls, so the mean and
+     * percentiles still describe the method; only the histogram's count is scaled down.
+     */
+    public boolean sample( int sampleEvery ) {
+      return sampleEvery <= 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+    }
+
+    /**
+     * The mean of all recorded times, in nanoseconds.
+     */
     public OptionalDouble getValue() {
-      return times.stream().mapToLong(Long::longValue).average();
+      return times.getMean();
+    }
+
+    /**
+     * Copies the recorded times once, so several percentiles can be read from the same copy
+     * rather than copying every bucket for each one.
+     */
+    public Histogram.Snapshot snapshot() {
+      return times.snapshot(new Histogram.Snapshot());
+    }
+
+    public long getMax() { return times.getMax(); }
+  }
+
+  /**
+   * A histogram of non-negative long values.  Values are placed in buckets by the position of their
+   * highest bit, and each power of two is split into SUB_BUCKET_COUNT linear sub buckets, so every
+   * recorded value is kept to within about 3% of its real value.  Implementations decide how the
+   * buckets are stored; readers see them through a Snapshot.
+   */
+  public static interface Histogram {
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    public void record( long value );
+
+    /**
+     * Copies the current state of the histogram into the given snapshot, so that a reader can
+     * reuse one snapshot for many histograms without allocating.
+     */
+    public Snapshot snapshot( Snapshot into );
+
+    public default long getCount() {
+      return snapshot(new Snapshot()).getCount();
+    }
+
+    public default long getMax() {
+      return snapshot(new Snapshot()).getMax();
+    }
+
+    public default OptionalDouble getMean() {
+      Snapshot snapshot = snapshot(new Snapshot());
+      return snapshot.getCount() == 0 ? OptionalDouble.empty() : OptionalDouble.of(snapshot.getMean());
+    }
+
+    /**
+     * Returns the highest value equivalent to the bucket that holds the given percentile,
+     * or 0 if nothing has been recorded.
+     */
+    public default long getValueAtPercentile( double percentile ) {
+      return snapshot(new Snapshot()).getValueAtPercentile(percentile);
+    }
+
+    /**
+     * A point in time copy of a histogram.  The count is taken from the copied buckets, so the
+     * percentiles always agree with it even if values were recorded while it was being taken.
+     */
+    public static class Snapshot {
+      final long[] counts = new long[BUCKET_COUNT];
+      long count;
+      long sum;
+      long max;
+
+      public long getCount() {
+        return count;
+      }
+
+      public long getMax() {
+        return max;
+      }
+
+      public double getMean() {
+        return count == 0 ? 0.0d : (double)sum/count;
+      }
+
+      public long getValueAtPercentile( double percentile ) {
+        if( count == 0 ) {
+          return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(Math.min(percentile, 100.0d) / 100.0d * count));
+        long seen = 0;
+        for( int i = 0; i < BUCKET_COUNT; i++ ) {
+          seen += counts[i];
+          if( seen >= rank ) {
+            return Math.min(highestEquivalentValue(i), max);
+          }
+        }
+        return max;
+      }
+    }
+
+    static int bucketIndex( long value ) {
+      if( value < SUB_BUCKET_COUNT ) {
+        return (int)value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      return (shift + 1) * SUB_BUCKET_COUNT + (int)(value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    static long lowestEquivalentValue( int index ) {
+      if( index < SUB_BUCKET_COUNT ) {
+        return index;
+      }
+      int shift = index / SUB_BUCKET_COUNT - 1;
+      return (long)(SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+    }
+
+    static long highestEquivalentValue( int index ) {
+      int shift = Math.max(0, index / SUB_BUCKET_COUNT - 1);
+      return lowestEquivalentValue(index) + (1L << shift) - 1;
+    }
+  }
+
+  /**
+   * A fixed size, lock free Histogram.  Memory use does not grow with the number of samples.
+   * Recording increments the value's bucket and adds to a LongAdder sum and a LongAccumulator max,
+   * which spread concurrent writers over cells instead of contending on one shared word.  There is
+   * no separate count; it is the sum of the buckets.
+   */
+  public static class AtomicHistogram implements Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    @Override
+    public void record( long value ) {
+      if( value < 0 ) {
+        throw new IllegalArgumentException("histogram values must be non-negative, got "+value);
+      }
+      buckets.incrementAndGet(Histogram.bucketIndex(value));
+      sum.add(value);
+      max.accumulate(value);
+    }
+
+    @Override
+    public long getCount() {
+      long total = 0;
+      for( int i = 0; i < BUCKET_COUNT; i++ ) {
+        total += buckets.get(i);
+      }
+      return total;
+    }
+
+    @Override
+    public long getMax() {
+      return max.get();
+    }
+
+    @Override
+    public OptionalDouble getMean() {
+      long n = getCount();
+      return n == 0 ? OptionalDouble.empty() : OptionalDouble.of((double)sum.sum()/n);
+    }
+
+    @Override
+    public Snapshot snapshot( Snapshot into ) {
+      long total = 0;
+      for( int i = 0; i < BUCKET_COUNT; i++ ) {
+        total += into.counts[i] = buckets.get(i);
+      }
+      into.count = total;
+      into.sum = sum.sum();
+      into.max = max.get();
+      return into;
     }
   }
   
+  /**
+   * Measures the rate of calls as one, five and fifteen minute exponentially weighted moving
+   * averages, plus the rate over a one minute sliding window.  Marking a call reads the clock and
+   * increments a LongAdder; reading a rate reads the clock too, and whichever comes first after a
+   * five second tick has passed applies the ticks, so calls land in the tick they were made in
+   * however often the meter is read.  Rates are per second.
+   */
+  public static class Meter {
+    static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    static final int WINDOW_TICKS = 12;
+
+    private LongAdder marks = new LongAdder();
+    /** The marks seen by the last tick; each tick takes what marks has gained since. */
+    private long ticked;
+    private Ewma oneMinute = new Ewma(1);
+    private Ewma fiveMinute = new Ewma(5);
+    private Ewma fifteenMinute = new Ewma(15);
+    private long[] window = new long[WINDOW_TICKS];
+    private int windowIndex;
+    private volatile long windowCount;
+    private LongSupplier clock;
+    private volatile long lastTick;
+
+    public Meter() {
+      this(System::nanoTime);
+    }
+
+    public Meter( LongSupplier clock ) {
+      this.clock = clock;
+      this.lastTick = clock.getAsLong();
+    }
+
+    public <T> T mark( ThrowingCallable<T> c ) throws Throwable {
+      mark();
+      return c.call();
+    }
+
+    public void mark() {
+      tickIfNecessary();
+      marks.increment();
+    }
+
+    public long getCount() {
+      return marks.sum();
+    }
+
+    public double getOneMinuteRate() {
+      tickIfNecessary();
+      return oneMinute.rate;
+    }
+
+    public double getFiveMinuteRate() {
+      tickIfNecessary();
+      return fiveMinute.rate;
+    }
+
+    public double getFifteenMinuteRate() {
+      tickIfNecessary();
+      return fifteenMinute.rate;
+    }
+
+    /**
+     * The rate over the last minute's worth of completed ticks.
+     */
+    public double getWindowRate() {
+      tickIfNecessary();
+      return (double)windowCount / (WINDOW_TICKS * TICK_INTERVAL / 1e9d);
+    }
+
+    /**
+     * Applies the ticks that have passed.  Callers that find ticks due wait on the lock for
+     * whichever of them applies the ticks, and lastTick only moves once they are applied, so no
+     * caller reads rates that are missing a tick it has seen pass.
+     */
+    void tickIfNecessary() {
+      if( clock.getAsLong() - lastTick < TICK_INTERVAL ) {
+        return;
+      }
+      synchronized( this ) {
+        long last = lastTick;
+        long ticks = (clock.getAsLong() - last) / TICK_INTERVAL;
+        for( long i = 0; i < Math.min(ticks, WINDOW_TICKS * 15); i++ ) {
+          tick();
+        }
+        lastTick = last + ticks * TICK_INTERVAL;
+      }
+    }
+
+    private void tick() {
+      long total = marks.sum();
+      long n = total - ticked;
+      ticked = total;
+      oneMinute.tick(n);
+      fiveMinute.tick(n);
+      fifteenMinute.tick(n);
+      windowCount += n - window[windowIndex];
+      window[windowIndex] = n;
+      windowIndex = (windowIndex + 1) % WINDOW_TICKS;
+    }
+
+    static class Ewma {
+      private final double alpha;
+      private volatile double rate;
+      private boolean initialized;
+
+      Ewma( int minutes ) {
+        this.alpha = 1 - Math.exp(-TICK_INTERVAL / 1e9d / 60 / minutes);
+      }
+
+      void tick( long n ) {
+        double instantRate = n / (TICK_INTERVAL / 1e9d);
+        if( initialized ) {
+          rate += alpha * (instantRate - rate);
+        } else {
+          rate = instantRate;
+          initialized = true;
+        }
+      }
+    }
+  }
+
   public static class Registry {
     private Map<Method, Counter> counters = Maps.newConcurrentMap();
     private Map<Method, Timer> timers = Maps.newConcurrentMap();
+    private Map<Method, Meter> meters = Maps.newConcurrentMap();
+    private Map<Method, Counter> failures = Maps.newConcurrentMap();
+    private Map<String, Counter> namedCounters = Maps.newConcurrentMap();
+    private Map<String, Timer> namedTimers = Maps.newConcurrentMap();
+    private Map<String, Histogram> histograms = Maps.newConcurrentMap();
+    private Supplier<Counter> newCounter;
+    private Supplier<Timer> newTimer;
+
+    public Registry() {
+      this(AdderCounter::new, Timer::new);
+    }
+
+    /**
+     * Creates a registry that builds its counters and timers with the given suppliers, so other
+     * recording strategies can be used behind the same interceptors and reporters.
+     */
+    public Registry(Supplier<Counter> newCounter, Supplier<Timer> newTimer) {
+      this.newCounter = newCounter;
+      this.newTimer = newTimer;
+    }
     
     public Counter counter(Method method) {
-      return counters.computeIfAbsent(method, k->new Counter());
+      return counters.computeIfAbsent(method, k->newCounter.get());
     }
     
     public Timer timer( Method method ) {
-      return timers.computeIfAbsent(method, k->new Timer());
+      return timers.computeIfAbsent(method, k->newTimer.get());
+    }
+    
+    public Meter meter( Method method ) {
+      return meters.computeIfAbsent(method, k->new Meter());
+    }
+
+    /**
+     * Counts the calls to a method that threw, or that returned a future that completed exceptionally.
+     */
+    public Counter failures( Method method ) {
+      return failures.computeIfAbsent(method, k->newCounter.get());
     }
     
     public Optional<Counter> getCounter(Method method) {
@@ -215,6 +1010,529 @@ public class MethodInterceptorTest {
     public Optional<Timer> getTimer(Method method) {
       return Optional.ofNullable(timers.get(method));
     }
+
+    public Optional<Meter> getMeter(Method method) {
+      return Optional.ofNullable(meters.get(method));
+    }
+
+    /**
+     * A counter that is not tied to calling a method, such as a cache's hits.  Names usually start
+     * with the name of the method they describe.
+     */
+    public Counter counter(String name) {
+      return namedCounters.computeIfAbsent(name, k->newCounter.get());
+    }
+
+    public Optional<Counter> getCounter(String name) {
+      return Optional.ofNullable(namedCounters.get(name));
+    }
+
+    /**
+     * A timer that is not tied to calling a method, such as how long calls wait to be batched.
+     */
+    public Timer timer(String name) {
+      return namedTimers.computeIfAbsent(name, k->newTimer.get());
+    }
+
+    public Optional<Timer> getTimer(String name) {
+      return Optional.ofNullable(namedTimers.get(name));
+    }
+
+    /**
+     * A distribution of values that are not durations, such as batch sizes.
+     */
+    public Histogram histogram(String name) {
+      return histograms.computeIfAbsent(name, k->new AtomicHistogram());
+    }
+
+    public Optional<Histogram> getHistogram(String name) {
+      return Optional.ofNullable(histograms.get(name));
+    }
+
+    public Optional<Counter> getFailures(Method method) {
+      return Optional.ofNullable(failures.get(method));
+    }
+
+    public Map<Method, Counter> getCounters() {
+      return Collections.unmodifiableMap(counters);
+    }
+
+    public Map<Method, Timer> getTimers() {
+      return Collections.unmodifiableMap(timers);
+    }
+
+    public Map<Method, Meter> getMeters() {
+      return Collections.unmodifiableMap(meters);
+    }
+
+    public Map<Method, Counter> getFailureCounters() {
+      return Collections.unmodifiableMap(failures);
+    }
+
+    public Map<String, Counter> getNamedCounters() {
+      return Collections.unmodifiableMap(namedCounters);
+    }
+
+    public Map<String, Timer> getNamedTimers() {
+      return Collections.unmodifiableMap(namedTimers);
+    }
+
+    public Map<String, Histogram> getHistograms() {
+      return Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * The name a method's metrics are reported under.
+     */
+    public static String name(Method method) {
+      return method.getDeclaringClass().getName() + "." + method.getName() +
+        Arrays.stream(method.getParameterTypes()).map(Class::getSimpleName).collect(joining(",", "(", ")"));
+    }
+
+    /**
+     * The method's name, built once when the method is registered, or first asked for.
+     */
+    public String nameOf(Method method) {
+      return names.computeIfAbsent(method, Registry::name);
+    }
+
+    private Map<Method, String> names = Maps.newConcurrentMap();
+    private Map<Method, Integer> slots = Maps.newConcurrentMap();
+    private volatile Method[] methodSlots = new Method[0];
+    private volatile Counter[] counterSlots = new Counter[0];
+    private volatile Timer[] timerSlots = new Timer[0];
+    private volatile Meter[] meterSlots = new Meter[0];
+    private volatile Counter[] failureSlots = new Counter[0];
+
+    /**
+     * The kinds of metric a registered method can have.
+     */
+    public static enum Metric {
+      /** A counter and a failure counter, for @Count. */
+      COUNT,
+      /** A timer, for @Timed. */
+      TIME,
+      /** A meter, for @Metered. */
+      METER
+    }
+
+    /**
+     * Registers the method with the metrics its @Count, @Timed and @Metered annotations ask for.
+     */
+    public int register(Method method) {
+      List<Metric> metrics = Lists.newArrayList();
+      if( method.isAnnotationPresent(Count.class) ) {
+        metrics.add(Metric.COUNT);
+      }
+      if( method.isAnnotationPresent(Timed.class) ) {
+        metrics.add(Metric.TIME);
+      }
+      if( method.isAnnotationPresent(Metered.class) ) {
+        metrics.add(Metric.METER);
+      }
+      return register(method, metrics.toArray(new Metric[metrics.size()]));
+    }
+
+    /**
+     * Assigns the method a dense slot number, creating the given metrics up front, so that
+     * interceptors bound to the method can find their metrics with an array access.  Only the
+     * metrics asked for are created, the slots of the others are null, and registering a method
+     * again adds any metrics it did not have yet.
+     */
+    public synchronized int register(Method method, Metric... metrics) {
+      Integer existing = slots.get(method);
+      int slot = existing != null ? existing : slots.size();
+      int length = Math.max(methodSlots.length, slot + 1);
+      Method[] newMethods = Arrays.copyOf(methodSlots, length);
+      Counter[] newCounters = Arrays.copyOf(counterSlots, length);
+      Timer[] newTimers = Arrays.copyOf(timerSlots, length);
+      Meter[] newMeters = Arrays.copyOf(meterSlots, length);
+      Counter[] newFailures = Arrays.copyOf(failureSlots, length);
+      newMethods[slot] = method;
+      nameOf(method);
+      for( Metric metric : metrics ) {
+        switch( metric ) {
+          case COUNT:
+            newCounters[slot] = counter(method);
+            newFailures[slot] = failures(method);
+            break;
+          case TIME:
+            newTimers[slot] = timer(method);
+            break;
+          case METER:
+            newMeters[slot] = meter(method);
+            break;
+        }
+      }
+      counterSlots = newCounters;
+      timerSlots = newTimers;
+      meterSlots = newMeters;
+      failureSlots = newFailures;
+      methodSlots = newMethods;
+      slots.put(method, slot);
+      return slot;
+    }
+
+    public int getSlotCount() {
+      return methodSlots.length;
+    }
+
+    public Method method(int slot) {
+      return methodSlots[slot];
+    }
+
+    public Counter counter(int slot) {
+      return counterSlots[slot];
+    }
+
+    public Timer timer(int slot) {
+      return timerSlots[slot];
+    }
+
+    public Meter meter(int slot) {
+      return meterSlots[slot];
+    }
+
+    public Counter failures(int slot) {
+      return failureSlots[slot];
+    }
+  }
+
+  /**
+   * Periodically writes every counter, timer and meter in a registry to an output stream, one JSON
+   * object per line.  Reports are written with a streaming JsonGenerator and a reused histogram
+   * snapshot, so a report does not build a tree and only reads the metrics' atomics.  Each
+   * metric is internally consistent; the report as a whole is not an atomic cut across metrics.
+   *
+   * A scheduled report that fails is logged and counted, and the next one starts with a new
+   * generator, so one bad write does not stop later reports.  The failed report may leave a
+   * partial line behind.
+   */
+  public static class JsonReporter implements Closeable {
+    private static final JsonFactory factory = new JsonFactory();
+    private static final Logger log = Logger.getLogger(JsonReporter.class.getName());
+
+    private Registry registry;
+    private OutputStream out;
+    private JsonGenerator generator;
+    private Histogram.Snapshot snapshot = new Histogram.Snapshot();
+    private ScheduledExecutorService executor;
+    private LongAdder failedReports = new LongAdder();
+
+    public JsonReporter(Registry registry, OutputStream out) throws IOException {
+      this.registry = registry;
+      this.out = out;
+      this.generator = newGenerator();
+    }
+
+    private JsonGenerator newGenerator() throws IOException {
+      return factory.createGenerator(out)
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        .setRootValueSeparator(new SerializedString("\n"));
+    }
+
+    public static JsonReporter toFile(Registry registry, Path path) throws IOException {
+      return new JsonReporter(registry, Files.newOutputStream(path, CREATE, APPEND));
+    }
+
+    /**
+     * Reports every period until closed.  Starting a reporter again stops the earlier schedule.
+     */
+    public synchronized JsonReporter start(long period, TimeUnit unit) {
+      if( executor != null ) {
+        executor.shutdownNow();
+      }
+      executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "json-reporter");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.scheduleAtFixedRate(this::scheduledReport, period, period, unit);
+      return this;
+    }
+
+    private synchronized void scheduledReport() {
+      try {
+        report();
+      } catch( IOException | RuntimeException e ) {
+        failedReports.increment();
+        log.log(Level.WARNING, "could not write metrics report", e);
+        try {
+          generator = newGenerator();
+        } catch( IOException suppressed ) {
+          e.addSuppressed(suppressed);
+        }
+      }
+    }
+
+    /**
+     * How many scheduled reports have failed.
+     */
+    public long getFailedReports() {
+      return failedReports.sum();
+    }
+
+    public synchronized void report() throws IOException {
+      generator.writeStartObject();
+      generator.writeNumberField("timestamp", System.currentTimeMillis());
+
+      generator.writeObjectFieldStart("counters");
+      for( Map.Entry<Method, Counter> entry : registry.getCounters().entrySet() ) {
+        generator.writeNumberField(registry.nameOf(entry.getKey()), entry.getValue().getValue());
+      }
+      for( Map.Entry<String, Counter> entry : registry.getNamedCounters().entrySet() ) {
+        generator.writeNumberField(entry.getKey(), entry.getValue().getValue());
+      }
+      generator.writeEndObject();
+
+      generator.writeObjectFieldStart("failures");
+      for( Map.Entry<Method, Counter> entry : registry.getFailureCounters().entrySet() ) {
+        generator.writeNumberField(registry.nameOf(entry.getKey()), entry.getValue().getValue());
+      }
+      generator.writeEndObject();
+
+      generator.writeObjectFieldStart("timers");
+      for( Map.Entry<Method, Timer> entry : registry.getTimers().entrySet() ) {
+        writeTimer(registry.nameOf(entry.getKey()), entry.getValue());
+      }
+      for( Map.Entry<String, Timer> entry : registry.getNamedTimers().entrySet() ) {
+        writeTimer(entry.getKey(), entry.getValue());
+      }
+      generator.writeEndObject();
+
+      generator.writeObjectFieldStart("histograms");
+      for( Map.Entry<String, Histogram> entry : registry.getHistograms().entrySet() ) {
+        writeHistogram(entry.getKey(), entry.getValue());
+      }
+      generator.writeEndObject();
+
+      generator.writeObjectFieldStart("meters");
+      for( Map.Entry<Method, Meter> entry : registry.getMeters().entrySet() ) {
+        Meter meter = entry.getValue();
+        generator.writeObjectFieldStart(registry.nameOf(entry.getKey()));
+        generator.writeNumberField("count", meter.getCount());
+        generator.writeNumberField("m1", meter.getOneMinuteRate());
+        generator.writeNumberField("m5", meter.getFiveMinuteRate());
+        generator.writeNumberField("m15", meter.getFifteenMinuteRate());
+        generator.writeNumberField("window", meter.getWindowRate());
+        generator.writeEndObject();
+      }
+      generator.writeEndObject();
+
+      generator.writeEndObject();
+      generator.flush();
+    }
+
+    private void writeTimer(String name, Timer timer) throws IOException {
+      writeHistogram(name, timer.times);
+    }
+
+    private void writeHistogram(String name, Histogram histogram) throws IOException {
+      histogram.snapshot(snapshot);
+      generator.writeObjectFieldStart(name);
+      generator.writeNumberField("count", snapshot.getCount());
+      generator.writeNumberField("mean", snapshot.getMean());
+      generator.writeNumberField("p50", snapshot.getValueAtPercentile(50.0d));
+      generator.writeNumberField("p90", snapshot.getValueAtPercentile(90.0d));
+      generator.writeNumberField("p99", snapshot.getValueAtPercentile(99.0d));
+      generator.writeNumberField("p999", snapshot.getValueAtPercentile(99.9d));
+      generator.writeNumberField("max", snapshot.getMax());
+      generator.writeEndObject();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if( executor != null ) {
+        executor.shutdownNow();
+      }
+      generator.close();
+      out.close();
+    }
+  }
+
+  /**
+   * Binds interceptors one method at a time to the @Tracked subclasses of the given types.  Each
+   * public method of each type is passed to configure(Class, Method), which binds what it needs
+   * with bindInterceptor(Class, Method, MethodInterceptor), or nothing.
+   */
+  public static abstract class TrackedMethodsModule extends AbstractModule {
+    private Class<?>[] types;
+
+    protected TrackedMethodsModule(Class<?>... types) {
+      this.types = types;
+    }
+
+    @Override
+    protected final void configure() {
+      for( Class<?> type : types ) {
+        for( Method method : type.getMethods() ) {
+          configure(type, method);
+        }
+      }
+    }
+
+    protected abstract void configure(Class<?> type, Method method);
+
+    protected void bindInterceptor(Class<?> type, Method method, MethodInterceptor interceptor) {
+      Matcher<? super Class<?>> classMatcher = Matchers.subclassesOf(type).and(Matchers.annotatedWith(Tracked.class));
+      bindInterceptor(classMatcher, Matchers.only(method), interceptor);
+    }
+  }
+
+  /**
+   * Binds the counting and timing interceptors one method at a time, so each interceptor is handed
+   * its method's registry slot when it is bound instead of looking the method up on every call.
+   */
+  public static class TrackedModule extends TrackedMethodsModule {
+    private Registry registry;
+
+    public TrackedModule(Registry registry, Class<?>... types) {
+      super(types);
+      this.registry = registry;
+    }
+
+    @Override
+    protected void configure(Class<?> type, Method method) {
+      boolean async = isAsync(method);
+      if( method.isAnnotationPresent(Count.class) ) {
+        bindInterceptor(type, method, new CountingInterceptor(registry, registry.register(method), async));
+      }
+      if( method.isAnnotationPresent(Metered.class) ) {
+        bindInterceptor(type, method, new MeteringInterceptor(registry, registry.register(method)));
+      }
+      if( method.isAnnotationPresent(Timed.class) ) {
+        int sampleEvery = method.getAnnotation(Timed.class).sampleEvery();
+        if( sampleEvery < 1 ) {
+          addError("sampleEvery must be at least 1 on %s", method);
+          return;
+        }
+        bindInterceptor(type, method, new TimingInterceptor(registry, registry.register(method), sampleEvery, async));
+      }
+    }
+  }
+
+  /**
+   * True if the method can return a CompletionStage.  A method declared to return a plain Future is
+   * included, since it may return a CompletableFuture; other Futures give no way to see completion
+   * without blocking a thread, so they are still timed until the method returns.
+   */
+  public static boolean isAsync(Method method) {
+    Class<?> returnType = method.getReturnType();
+    return CompletionStage.class.isAssignableFrom(returnType) || Future.class.isAssignableFrom(returnType);
+  }
+
+  /*
+   * The interceptors bound by TrackedModule.  They call proceed() directly instead of passing
+   * i::proceed to the metric, so a steady state call allocates nothing beyond what Guice
+   * allocates for the invocation itself.
+   */
+
+  public static class CountingInterceptor implements MethodInterceptor {
+    private Registry registry;
+    private int slot;
+    private boolean async;
+
+    public CountingInterceptor(Registry registry, int slot) {
+      this(registry, slot, false);
+    }
+
+    /**
+     * When async is true, a CompletionStage returned by the method is counted as a failure if it
+     * completes exceptionally.
+     */
+    public CountingInterceptor(Registry registry, int slot, boolean async) {
+      this.registry = registry;
+      this.slot = slot;
+      this.async = async;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation i) throws Throwable {
+      registry.counter(slot).increment();
+      Object result;
+      try {
+        result = i.proceed();
+      } catch( Throwable t ) {
+        registry.failures(slot).increment();
+        throw t;
+      }
+      if( async && result instanceof CompletionStage ) {
+        Counter failures = registry.failures(slot);
+        ((CompletionStage<?>)result).whenComplete((value, t) -> {
+          if( t != null ) {
+            failures.increment();
+          }
+        });
+      }
+      return result;
+    }
+  }
+
+  public static class MeteringInterceptor implements MethodInterceptor {
+    private Registry registry;
+    private int slot;
+
+    public MeteringInterceptor(Registry registry, int slot) {
+      this.registry = registry;
+      this.slot = slot;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation i) throws Throwable {
+      registry.meter(slot).mark();
+      return i.proceed();
+    }
+  }
+
+  public static class TimingInterceptor implements MethodInterceptor {
+    private Registry registry;
+    private int slot;
+    private int sampleEvery;
+    private boolean async;
+
+    public TimingInterceptor(Registry registry, int slot, int sampleEvery) {
+      this(registry, slot, sampleEvery, false);
+    }
+
+    /**
+     * When async is true, the time for a call that returns a CompletionStage runs until the stage
+     * completes, rather than until the method returns.
+     */
+    public TimingInterceptor(Registry registry, int slot, int sampleEvery, boolean async) {
+      this.registry = registry;
+      this.slot = slot;
+      this.sampleEvery = sampleEvery;
+      this.async = async;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation i) throws Throwable {
+      Timer timer = registry.timer(slot);
+      if( !timer.sample(sampleEvery) ) {
+        return i.proceed();
+      }
+      long startTime = System.nanoTime();
+      if( !async ) {
+        try {
+          return i.proceed();
+        } finally {
+          timer.record(System.nanoTime() - startTime);
+        }
+      }
+      Object result;
+      try {
+        result = i.proceed();
+      } catch( Throwable t ) {
+        timer.record(System.nanoTime() - startTime);
+        throw t;
+      }
+      if( result instanceof CompletionStage ) {
+        ((CompletionStage<?>)result).whenComplete((value, t) -> timer.record(System.nanoTime() - startTime));
+      } else {
+        timer.record(System.nanoTime() - startTime);
+      }
+      return result;
+    }
   }
     
   public static Random random = new Random();
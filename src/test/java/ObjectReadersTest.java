@@ -0,0 +1,111 @@
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static com.github.fge.lambdas.Throwing.consumer;
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Binding JSON with readers that are built once and shared, rather than with a new ObjectMapper
+ * every time, as StrategyPatternTest.Context and TemplateMethodTest.HandlerTemplate once did.
+ */
+public class ObjectReadersTest {
+
+  /**
+   * One ObjectReader per target type, all from the same ObjectMapper, so the deserializers Jackson
+   * builds for a type are found once and then reused by every binding of it.  Readers are immutable
+   * and thread safe.  Readers are keyed by the TypeReference's type, not by the reference, so the
+   * anonymous TypeReference subclass each caller creates finds the same reader.
+   */
+  public static class ObjectReaders {
+    private static final ObjectReaders SHARED = new ObjectReaders(new ObjectMapper());
+
+    /**
+     * The readers used by Context and HandlerTemplate.
+     */
+    public static ObjectReaders shared() {
+      return SHARED;
+    }
+
+    private ObjectMapper mapper;
+    private Map<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    public ObjectReaders(ObjectMapper mapper) {
+      this.mapper = mapper;
+    }
+
+    public ObjectReader forType(TypeReference<?> typeReference) {
+      return readers.computeIfAbsent(typeReference.getType(), type -> mapper.readerFor(mapper.getTypeFactory().constructType(type)));
+    }
+
+    public <T> T read(Reader in, TypeReference<T> typeReference) throws IOException {
+      return forType(typeReference).readValue(in);
+    }
+
+    public ObjectMapper getMapper() {
+      return mapper;
+    }
+
+    public int size() {
+      return readers.size();
+    }
+  }
+
+  static final String ONE_TWO_THREE = "[\"one\", \"two\", \"three\"]";
+
+  @Test
+  public void sharesReadersByType() throws IOException {
+    ObjectReaders readers = new ObjectReaders(new ObjectMapper());
+
+    ObjectReader first = readers.forType(new TypeReference<List<String>>(){});
+    ObjectReader second = readers.forType(new TypeReference<List<String>>(){});
+    readers.forType(new TypeReference<ArrayNode>(){});
+
+    assertThat(second, sameInstance(first));
+    assertThat(readers.size(), equalTo(2));
+    List<String> values = readers.read(new StringReader(ONE_TWO_THREE), new TypeReference<List<String>>(){});
+    assertThat(values, equalTo(newArrayList("one", "two", "three")));
+  }
+
+  @Test
+  public void bindsConcurrently() {
+    ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    Runnable binding = () -> {
+      for( int i = 0; i < 1000; i++ ) {
+        try {
+          new StrategyPatternTest.Context<List<String>>(new TypeReference<List<String>>(){},
+            () -> new StringReader(ONE_TWO_THREE),
+            values -> assertThat(values, equalTo(newArrayList("one", "two", "three")))).execute();
+        } catch( UncheckedIOException | AssertionError e ) {
+          failures.add(e);
+        }
+      }
+    };
+
+    List<Thread> threads = range(0, 4).mapToObj(i -> new Thread(binding)).collect(toList());
+    threads.forEach(Thread::start);
+    threads.forEach(consumer(Thread::join));
+
+    assertThat(failures, empty());
+    assertThat(ObjectReaders.shared().size(), not(equalTo(0)));
+  }
+}
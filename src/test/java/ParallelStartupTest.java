@@ -0,0 +1,309 @@
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provides;
+import com.google.inject.Scopes;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.HasDependencies;
+import com.google.inject.spi.InstanceBinding;
+import org.junit.Test;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Builds an injector's singletons up front and in parallel, instead of one at a time on the first
+ * requests that need them.
+ */
+public class ParallelStartupTest {
+
+    /**
+     * Walks an injector's bindings, finds its singletons and the singletons each one depends on,
+     * and builds them on a fork join pool, each as soon as the singletons it depends on are built.
+     *
+     * Singletons that depend on each other, such as GuiceTest.WhatSingletonA and WhatSingletonB,
+     * form a strongly connected component of the graph.  Each component is built as one task, one
+     * member after another, so Guice resolves the cycle with its usual proxies.
+     */
+    public static class ParallelSingletons {
+        private Injector injector;
+        private Map<Key<?>, Long> constructionNanos = new ConcurrentHashMap<>();
+
+        public ParallelSingletons(Injector injector) {
+            this.injector = injector;
+        }
+
+        public static ParallelSingletons createInjector(ForkJoinPool pool, Module... modules) {
+            ParallelSingletons singletons = new ParallelSingletons(Guice.createInjector(modules));
+            singletons.build(pool);
+            return singletons;
+        }
+
+        public Injector getInjector() {
+            return injector;
+        }
+
+        /**
+         * How long each singleton took to get, in nanoseconds.  This is the singleton's own
+         * construction, since the singletons it depends on were built before it, except within a
+         * cycle, where the first member built also pays for the rest.
+         */
+        public Map<Key<?>, Long> getConstructionNanos() {
+            return constructionNanos;
+        }
+
+        public void build(ForkJoinPool pool) {
+            Map<Key<?>, Set<Key<?>>> graph = new HashMap<>();
+            for (Binding<?> binding : injector.getAllBindings().values()) {
+                if (isBuiltSingleton(binding)) {
+                    graph.put(binding.getKey(), new LinkedHashSet<>());
+                }
+            }
+            for (Map.Entry<Key<?>, Set<Key<?>>> entry : graph.entrySet()) {
+                singletonDependencies(injector.getBinding(entry.getKey()), graph.keySet(), entry.getValue(), new HashSet<>());
+            }
+
+            Map<Key<?>, CompletableFuture<Void>> built = new HashMap<>();
+            List<CompletableFuture<Void>> all = new ArrayList<>();
+            for (List<Key<?>> component : new Components(graph).inDependencyOrder()) {
+                List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+                for (Key<?> key : component) {
+                    for (Key<?> dependency : graph.get(key)) {
+                        if (built.containsKey(dependency)) {
+                            dependencies.add(built.get(dependency));
+                        }
+                    }
+                }
+                CompletableFuture<Void> future = CompletableFuture
+                        .allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]))
+                        .thenRunAsync(() -> component.forEach(this::get), pool);
+                component.forEach(key -> built.put(key, future));
+                all.add(future);
+            }
+
+            try {
+                CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[all.size()])).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        private void get(Key<?> key) {
+            long startTime = System.nanoTime();
+            injector.getInstance(key);
+            constructionNanos.put(key, System.nanoTime() - startTime);
+        }
+
+        private static boolean isBuiltSingleton(Binding<?> binding) {
+            return Scopes.isSingleton(binding) && !(binding instanceof InstanceBinding);
+        }
+
+        /**
+         * Adds the singletons a binding needs, looking through any unscoped bindings between them.
+         */
+        private void singletonDependencies(Binding<?> binding, Set<Key<?>> singletons, Set<Key<?>> into, Set<Key<?>> visited) {
+            if (!(binding instanceof HasDependencies)) {
+                return;
+            }
+            for (Dependency<?> dependency : ((HasDependencies) binding).getDependencies()) {
+                Key<?> key = dependency.getKey();
+                if (!visited.add(key)) {
+                    continue;
+                }
+                if (singletons.contains(key)) {
+                    into.add(key);
+                } else {
+                    Binding<?> next = injector.getExistingBinding(key);
+                    if (next != null) {
+                        singletonDependencies(next, singletons, into, visited);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tarjan's strongly connected components.  Components come out with every component they depend
+     * on before them.
+     */
+    static class Components {
+        private Map<Key<?>, Set<Key<?>>> graph;
+        private Map<Key<?>, Integer> index = new HashMap<>();
+        private Map<Key<?>, Integer> lowLink = new HashMap<>();
+        private Deque<Key<?>> stack = new ArrayDeque<>();
+        private Set<Key<?>> onStack = new HashSet<>();
+        private List<List<Key<?>>> components = new ArrayList<>();
+
+        Components(Map<Key<?>, Set<Key<?>>> graph) {
+            this.graph = graph;
+        }
+
+        List<List<Key<?>>> inDependencyOrder() {
+            for (Key<?> key : graph.keySet()) {
+                if (!index.containsKey(key)) {
+                    visit(key);
+                }
+            }
+            return components;
+        }
+
+        private void visit(Key<?> key) {
+            index.put(key, index.size());
+            lowLink.put(key, index.get(key));
+            stack.push(key);
+            onStack.add(key);
+
+            for (Key<?> dependency : graph.get(key)) {
+                if (!index.containsKey(dependency)) {
+                    visit(dependency);
+                    lowLink.put(key, Math.min(lowLink.get(key), lowLink.get(dependency)));
+                } else if (onStack.contains(dependency)) {
+                    lowLink.put(key, Math.min(lowLink.get(key), index.get(dependency)));
+                }
+            }
+
+            if (lowLink.get(key).equals(index.get(key))) {
+                List<Key<?>> component = new ArrayList<>();
+                Key<?> member;
+                do {
+                    member = stack.pop();
+                    onStack.remove(member);
+                    component.add(member);
+                } while (!member.equals(key));
+                components.add(component);
+            }
+        }
+    }
+
+    public static abstract class Slow {
+        public Slow() throws InterruptedException {
+            MILLISECONDS.sleep(50);
+        }
+    }
+
+    @Singleton
+    public static class SlowA extends Slow {
+        public SlowA() throws InterruptedException {}
+    }
+
+    @Singleton
+    public static class SlowB extends Slow {
+        public SlowB() throws InterruptedException {}
+    }
+
+    @Singleton
+    public static class SlowC extends Slow {
+        public SlowC() throws InterruptedException {}
+    }
+
+    @Singleton
+    public static class SlowD extends Slow {
+        public SlowD() throws InterruptedException {}
+    }
+
+    public static class Unscoped {
+        @Inject
+        public SlowD d;
+    }
+
+    @Singleton
+    public static class Service {
+        public SlowA a;
+        public String name;
+        public Unscoped unscoped;
+
+        @Inject
+        public Service(SlowA a, @Named("name") String name, Unscoped unscoped) {
+            this.a = a;
+            this.name = name;
+            this.unscoped = unscoped;
+        }
+    }
+
+    public static class SlowModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            bind(Service.class);
+            bind(SlowB.class);
+            bind(SlowC.class);
+        }
+
+        @Provides
+        @Singleton
+        @Named("name")
+        public String provideName(SlowB b, SlowC c) {
+            return "service";
+        }
+    }
+
+    @Test
+    public void buildsIndependentSingletonsInParallel() {
+        ParallelSingletons singletons = new ParallelSingletons(Guice.createInjector(new SlowModule()));
+        long startTime = System.nanoTime();
+        singletons.build(new ForkJoinPool(4));
+        long elapsed = System.nanoTime() - startTime;
+        Injector injector = singletons.getInjector();
+
+        Service service = injector.getInstance(Service.class);
+        assertThat(service.a, sameInstance(injector.getInstance(SlowA.class)));
+        assertThat(service.unscoped.d, sameInstance(injector.getInstance(SlowD.class)));
+        assertThat(service.name, equalTo("service"));
+
+        assertThat(singletons.getConstructionNanos().get(Key.get(SlowA.class)), greaterThanOrEqualTo(MILLISECONDS.toNanos(50)));
+        assertThat(singletons.getConstructionNanos().get(Key.get(Service.class)), lessThan(MILLISECONDS.toNanos(50)));
+        assertThat(NANOSECONDS.toMillis(elapsed), lessThan(200L));
+    }
+
+    @Test
+    public void buildsCircularSingletons() {
+        ParallelSingletons singletons = ParallelSingletons.createInjector(new ForkJoinPool(4), new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bind(GuiceTest.WhatSingletonAIf.class).to(GuiceTest.WhatSingletonA.class);
+                bind(GuiceTest.WhatSingletonBIf.class).to(GuiceTest.WhatSingletonB.class);
+                bind(GuiceTest.SimpleSingletonA.class);
+            }
+        });
+        Injector injector = singletons.getInjector();
+
+        GuiceTest.WhatSingletonAIf a = injector.getInstance(GuiceTest.WhatSingletonAIf.class);
+        GuiceTest.WhatSingletonBIf b = injector.getInstance(GuiceTest.WhatSingletonBIf.class);
+        assertThat(a.getB().getRandom(), equalTo(b.getRandom()));
+        assertThat(b.getA().getRandom(), equalTo(a.getRandom()));
+
+        GuiceTest.SimpleSingletonA simpleA = injector.getInstance(GuiceTest.SimpleSingletonA.class);
+        assertThat(simpleA.b, sameInstance(injector.getInstance(GuiceTest.SimpleSingletonB.class)));
+
+        assertThat(singletons.getConstructionNanos().containsKey(Key.get(GuiceTest.WhatSingletonA.class)), equalTo(true));
+        assertThat(singletons.getConstructionNanos().containsKey(Key.get(GuiceTest.SimpleSingletonB.class)), equalTo(true));
+    }
+}
@@ -0,0 +1,283 @@
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scope;
+import com.google.inject.ScopeAnnotation;
+import org.junit.Test;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.github.fge.lambdas.Throwing.consumer;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+
+/**
+ * A scope that reuses instances of expensive unscoped bindings, such as objects that hold large
+ * buffers, instead of allocating a new one for every injection.
+ */
+public class PooledScopeTest {
+
+    @Target({ElementType.TYPE, ElementType.METHOD})
+    @Retention(RetentionPolicy.RUNTIME)
+    @ScopeAnnotation
+    public static @interface Pooled {}
+
+    /**
+     * Implemented by pooled objects that need clearing before they are handed out again.
+     */
+    public static interface Poolable {
+        public void reset();
+    }
+
+    /**
+     * Hands out instances of each key it scopes from a pool of its own, creating them with the
+     * unscoped provider when the pool is empty.  Callers give instances back with release(), which
+     * resets Poolable instances first; instances that are never released, or are released into a
+     * full pool, are simply left for the garbage collector.  A scope serves one injector: each key
+     * gets one pool, built on that injector's unscoped provider, and scoping a key a second time,
+     * from another injector for example, is an error.  Give each injector a PooledScope of its own.
+     */
+    public static class PooledScope implements Scope {
+        private int stripes;
+        private int stripeSize;
+        private Map<Key<?>, Pool<?>> pools = new ConcurrentHashMap<>();
+
+        /**
+         * @param stripes rounded up to a power of two.
+         * @param stripeSize how many idle instances each stripe of a key's pool holds.
+         */
+        public PooledScope(int stripes, int stripeSize) {
+            this.stripes = Integer.highestOneBit(Math.max(1, stripes) * 2 - 1);
+            this.stripeSize = stripeSize;
+        }
+
+        @Override
+        public <T> Provider<T> scope(Key<T> key, Provider<T> unscoped) {
+            Pool<T> pool = new Pool<>(unscoped, stripes, stripeSize);
+            if (pools.putIfAbsent(key, pool) != null) {
+                throw new IllegalStateException(key + " is already scoped by this PooledScope; use one PooledScope per injector");
+            }
+            return pool::take;
+        }
+
+        /**
+         * The pool for a key, so hot paths can release without looking it up each time.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> Pool<T> pool(Key<T> key) {
+            Pool<T> pool = (Pool<T>) pools.get(key);
+            if (pool == null) {
+                throw new IllegalArgumentException(key + " is not bound in this scope");
+            }
+            return pool;
+        }
+
+        public <T> void release(Class<T> type, T instance) {
+            release(Key.get(type), instance);
+        }
+
+        public <T> void release(Key<T> key, T instance) {
+            pool(key).release(instance);
+        }
+
+        @Override
+        public String toString() {
+            return "PooledScope";
+        }
+    }
+
+    /**
+     * A bounded pool split into stripes.  A thread takes from and releases into the stripe its id
+     * picks, and moves on to the other stripes only when its own is empty or full, so threads
+     * rarely contend for a slot.  Slots are claimed with compare and set, with no lock.  Each
+     * stripe is followed by PADDING empty slots so neighbouring stripes do not share a cache line.
+     */
+    public static class Pool<T> {
+        static final int PADDING = 16;
+
+        private Provider<T> unscoped;
+        private int stripes;
+        private int stripeSize;
+        private int stride;
+        private AtomicReferenceArray<T> slots;
+        private LongAdder created = new LongAdder();
+
+        Pool(Provider<T> unscoped, int stripes, int stripeSize) {
+            this.unscoped = unscoped;
+            this.stripes = stripes;
+            this.stripeSize = stripeSize;
+            this.stride = stripeSize + PADDING;
+            this.slots = new AtomicReferenceArray<>(stripes * stride);
+        }
+
+        public T take() {
+            int first = stripe();
+            for (int s = 0; s < stripes; s++) {
+                int base = ((first + s) & (stripes - 1)) * stride;
+                for (int i = base; i < base + stripeSize; i++) {
+                    T instance = slots.get(i);
+                    if (instance != null && slots.compareAndSet(i, instance, null)) {
+                        return instance;
+                    }
+                }
+            }
+            created.increment();
+            return unscoped.get();
+        }
+
+        /**
+         * Gives an instance back.  Releasing an instance that is still idle in the pool throws
+         * IllegalStateException rather than putting it in two slots, where two callers would
+         * later take it at once.  The check is a scan of the slots, so it catches a second release
+         * that follows the first, not two threads releasing one instance at the same moment, and
+         * it cannot tell once the instance has been taken again.
+         */
+        public void release(T instance) {
+            for (int i = 0; i < slots.length(); i++) {
+                if (slots.get(i) == instance) {
+                    throw new IllegalStateException(instance + " has already been released");
+                }
+            }
+            if (instance instanceof Poolable) {
+                ((Poolable) instance).reset();
+            }
+            int first = stripe();
+            for (int s = 0; s < stripes; s++) {
+                int base = ((first + s) & (stripes - 1)) * stride;
+                for (int i = base; i < base + stripeSize; i++) {
+                    if (slots.get(i) == null && slots.compareAndSet(i, null, instance)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * How many instances the pool has had to create.
+         */
+        public long getCreated() {
+            return created.sum();
+        }
+
+        private int stripe() {
+            return (int) Thread.currentThread().getId() & (stripes - 1);
+        }
+    }
+
+    @Pooled
+    public static class PooledBuffer implements Poolable {
+        public ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        @Override
+        public void reset() {
+            buffer.clear();
+        }
+    }
+
+    public static class PooledModule extends AbstractModule {
+        private PooledScope scope;
+
+        public PooledModule(PooledScope scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        protected void configure() {
+            bindScope(Pooled.class, scope);
+            bind(PooledBuffer.class);
+            bind(GuiceTest.Simple.class).in(scope);
+        }
+    }
+
+    @Test
+    public void reusesReleasedInstances() {
+        PooledScope scope = new PooledScope(4, 2);
+        Injector injector = Guice.createInjector(new PooledModule(scope));
+
+        PooledBuffer first = injector.getInstance(PooledBuffer.class);
+        first.buffer.putLong(1L);
+        scope.release(PooledBuffer.class, first);
+
+        PooledBuffer second = injector.getInstance(PooledBuffer.class);
+        assertThat(second, sameInstance(first));
+        assertThat(second.buffer.position(), equalTo(0));
+
+        GuiceTest.Simple simple = injector.getInstance(GuiceTest.Simple.class);
+        assertThat(injector.getInstance(GuiceTest.Simple.class), not(sameInstance(simple)));
+        scope.release(GuiceTest.Simple.class, simple);
+        assertThat(injector.getInstance(GuiceTest.Simple.class), sameInstance(simple));
+    }
+
+    @Test
+    public void dropsReleasesIntoAFullPool() {
+        PooledScope scope = new PooledScope(1, 2);
+        Injector injector = Guice.createInjector(new PooledModule(scope));
+        Pool<PooledBuffer> pool = scope.pool(Key.get(PooledBuffer.class));
+
+        List<PooledBuffer> taken = range(0, 3).mapToObj(i -> injector.getInstance(PooledBuffer.class)).collect(toList());
+        taken.forEach(pool::release);
+        List<PooledBuffer> retaken = range(0, 3).mapToObj(i -> injector.getInstance(PooledBuffer.class)).collect(toList());
+
+        assertThat(retaken.subList(0, 2), equalTo(taken.subList(0, 2)));
+        assertThat(pool.getCreated(), equalTo(4L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void scopeServesOneInjector() {
+        PooledScope scope = new PooledScope(4, 2);
+        Guice.createInjector(new PooledModule(scope));
+        Guice.createInjector(new PooledModule(scope));
+    }
+
+    @Test
+    public void rejectsASecondRelease() {
+        PooledScope scope = new PooledScope(4, 2);
+        Injector injector = Guice.createInjector(new PooledModule(scope));
+
+        PooledBuffer buffer = injector.getInstance(PooledBuffer.class);
+        scope.release(Key.get(PooledBuffer.class), buffer);
+        try {
+            scope.release(PooledBuffer.class, buffer);
+            fail("expected the second release to be rejected");
+        } catch (IllegalStateException expected) {
+        }
+
+        assertThat(injector.getInstance(PooledBuffer.class), sameInstance(buffer));
+        assertThat(injector.getInstance(PooledBuffer.class), not(sameInstance(buffer)));
+    }
+
+    @Test
+    public void poolsAcrossThreads() {
+        PooledScope scope = new PooledScope(8, 2);
+        Injector injector = Guice.createInjector(new PooledModule(scope));
+        Provider<PooledBuffer> provider = injector.getProvider(PooledBuffer.class);
+        Pool<PooledBuffer> pool = scope.pool(Key.get(PooledBuffer.class));
+
+        Runnable r = () -> range(0, 1000).forEach(i -> pool.release(provider.get()));
+        List<Thread> threadList = range(0, 8)
+                .mapToObj(i -> new Thread(r))
+                .collect(toList());
+
+        threadList.stream().forEach(Thread::start);
+        threadList.stream().forEach(consumer(Thread::join));
+
+        assertThat(pool.getCreated(), lessThan(100L));
+    }
+}
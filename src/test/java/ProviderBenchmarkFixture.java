@@ -0,0 +1,43 @@
+import java.util.function.Supplier;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+
+import benchmarks.ProviderBenchmark;
+
+/**
+ * Builds the subjects of benchmarks.ProviderBenchmark.
+ */
+public class ProviderBenchmarkFixture implements ProviderBenchmark.Fixture {
+  Injector injector = Guice.createInjector();
+  ProviderHandlesTest.ProviderHandles handles = new ProviderHandlesTest.ProviderHandles(injector, true);
+
+  @Override
+  public Supplier<?> getInstanceSimple() {
+    return () -> injector.getInstance(GuiceTest.Simple.class);
+  }
+
+  @Override
+  public Supplier<?> providerSimple() {
+    Provider<GuiceTest.Simple> provider = injector.getProvider(GuiceTest.Simple.class);
+    return provider::get;
+  }
+
+  @Override
+  public Supplier<?> handleSimple() {
+    Provider<GuiceTest.Simple> provider = handles.get(GuiceTest.Simple.class);
+    return provider::get;
+  }
+
+  @Override
+  public Supplier<?> getInstanceSingleton() {
+    return () -> injector.getInstance(GuiceTest.SimpleSingleton.class);
+  }
+
+  @Override
+  public Supplier<?> handleSingleton() {
+    Provider<GuiceTest.SimpleSingleton> provider = handles.get(GuiceTest.SimpleSingleton.class);
+    return provider::get;
+  }
+}
@@ -0,0 +1,188 @@
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.spi.ConstructorBinding;
+import com.google.inject.spi.DefaultBindingScopingVisitor;
+import org.junit.Test;
+
+import javax.inject.Inject;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Resolves providers once, so hot paths do not look up a binding on every call the way
+ * injector.getInstance() does.
+ */
+public class ProviderHandlesTest {
+
+    /**
+     * Caches a provider for each key, the injector's own provider by default.  When generated
+     * constructors are turned on, unscoped types that Guice would build with a public no argument
+     * constructor and nothing else, no injected members, no interceptors, get a provider that calls
+     * the constructor through a LambdaMetafactory generated Supplier, with no reflection or injector
+     * involved.  Provision listeners, a StartupProfiler's among them, are not told about generated
+     * constructions, so only turn them on for injectors that have none.
+     */
+    public static class ProviderHandles {
+        private Injector injector;
+        private boolean generateConstructors;
+        private Map<Key<?>, Provider<?>> providers = new ConcurrentHashMap<>();
+
+        public ProviderHandles(Injector injector) {
+            this(injector, false);
+        }
+
+        public ProviderHandles(Injector injector, boolean generateConstructors) {
+            this.injector = injector;
+            this.generateConstructors = generateConstructors;
+        }
+
+        public <T> Provider<T> get(Class<T> type) {
+            return get(Key.get(type));
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> Provider<T> get(Key<T> key) {
+            return (Provider<T>) providers.computeIfAbsent(key, this::resolve);
+        }
+
+        /**
+         * Whether the key's provider calls a generated constructor.
+         */
+        public boolean isGenerated(Key<?> key) {
+            return get(key) instanceof GeneratedProvider;
+        }
+
+        private <T> Provider<T> resolve(Key<T> key) {
+            Binding<T> binding = injector.getBinding(key);
+            if (generateConstructors && binding instanceof ConstructorBinding && isUnscoped(binding)) {
+                ConstructorBinding<T> constructorBinding = (ConstructorBinding<T>) binding;
+                if (constructorBinding.getDependencies().isEmpty()
+                        && constructorBinding.getInjectableMembers().isEmpty()
+                        && constructorBinding.getMethodInterceptors().isEmpty()) {
+                    Supplier<T> constructor = constructor((Constructor<?>) constructorBinding.getConstructor().getMember());
+                    if (constructor != null) {
+                        return new GeneratedProvider<>(constructor);
+                    }
+                }
+            }
+            return binding.getProvider();
+        }
+
+        private static boolean isUnscoped(Binding<?> binding) {
+            return binding.acceptScopingVisitor(new DefaultBindingScopingVisitor<Boolean>() {
+                @Override
+                public Boolean visitNoScoping() {
+                    return true;
+                }
+
+                @Override
+                protected Boolean visitOther() {
+                    return false;
+                }
+            });
+        }
+
+        /**
+         * Returns a Supplier that calls the constructor, or null if it cannot be reached from here.
+         */
+        @SuppressWarnings("unchecked")
+        private static <T> Supplier<T> constructor(Constructor<?> constructor) {
+            CallSite site;
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                MethodHandle handle = lookup.unreflectConstructor(constructor);
+                site = LambdaMetafactory.metafactory(lookup, "get",
+                        MethodType.methodType(Supplier.class),
+                        MethodType.methodType(Object.class),
+                        handle,
+                        MethodType.methodType(constructor.getDeclaringClass()));
+            } catch (IllegalAccessException | LambdaConversionException e) {
+                return null;
+            }
+            try {
+                return (Supplier<T>) site.getTarget().invoke();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("could not create a supplier for " + constructor, e);
+            }
+        }
+    }
+
+    static class GeneratedProvider<T> implements Provider<T> {
+        private Supplier<T> constructor;
+
+        GeneratedProvider(Supplier<T> constructor) {
+            this.constructor = constructor;
+        }
+
+        @Override
+        public T get() {
+            return constructor.get();
+        }
+    }
+
+    public static class NeedsSimple {
+        @Inject
+        public GuiceTest.Simple simple;
+    }
+
+    @Test
+    public void unscopedHandlesConstructDirectly() {
+        ProviderHandles handles = new ProviderHandles(Guice.createInjector(), true);
+        Provider<GuiceTest.Simple> simple = handles.get(GuiceTest.Simple.class);
+
+        assertThat(handles.get(GuiceTest.Simple.class), sameInstance(simple));
+        assertThat(handles.isGenerated(Key.get(GuiceTest.Simple.class)), equalTo(true));
+        assertThat(simple.get().getRandom(), not(equalTo(simple.get().getRandom())));
+    }
+
+    @Test
+    public void generatedConstructorsAreOptIn() {
+        ProviderHandles handles = new ProviderHandles(Guice.createInjector());
+
+        assertThat(handles.isGenerated(Key.get(GuiceTest.Simple.class)), equalTo(false));
+        assertThat(handles.get(GuiceTest.Simple.class).get(), notNullValue());
+    }
+
+    @Test
+    public void singletonHandlesShareTheInjectorsInstance() {
+        Injector injector = Guice.createInjector();
+        ProviderHandles handles = new ProviderHandles(injector, true);
+
+        assertThat(handles.isGenerated(Key.get(GuiceTest.SimpleSingleton.class)), equalTo(false));
+        assertThat(handles.get(GuiceTest.SimpleSingleton.class).get(), sameInstance(injector.getInstance(GuiceTest.SimpleSingleton.class)));
+    }
+
+    @Test
+    public void injectedAndInterceptedTypesUseTheInjector() throws Exception {
+        MethodInterceptorTest.Registry registry = new MethodInterceptorTest.Registry();
+        ProviderHandles handles = new ProviderHandles(Guice.createInjector(new MethodInterceptorTest.TrackedModule(registry, MethodInterceptorTest.ExampleMethods.class)), true);
+        Method intMethod = MethodInterceptorTest.ExampleMethods.class.getMethod("intMethod");
+
+        assertThat(handles.isGenerated(Key.get(NeedsSimple.class)), equalTo(false));
+        assertThat(handles.get(NeedsSimple.class).get().simple, notNullValue());
+
+        assertThat(handles.isGenerated(Key.get(MethodInterceptorTest.ExampleMethods.class)), equalTo(false));
+        handles.get(MethodInterceptorTest.ExampleMethods.class).get().intMethod();
+        assertThat(registry.getCounter(intMethod).get().getValue(), equalTo(1L));
+    }
+}
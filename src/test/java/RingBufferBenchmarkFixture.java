@@ -0,0 +1,86 @@
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import benchmarks.RingBufferBenchmark;
+
+/**
+ * Builds the subjects of benchmarks.RingBufferBenchmark.
+ */
+public class RingBufferBenchmarkFixture implements RingBufferBenchmark.Fixture {
+  private static final BiConsumer<ObjectNode, String> SET_TYPE = (node, type) -> node.put("type", type);
+
+  long handled;
+
+  /**
+   * The same chain for both handoffs, compiled so that its own per event stream does not drown out
+   * the cost of the handoff.
+   */
+  Predicate<ObjectNode> chain() {
+    return new CommandPatternTest.CompiledChain(new CommandPatternTest.Chain<ObjectNode>()
+      .addChild(new CommandPatternTest.TypeHandler("goodbye", node -> handled--))
+      .addChild(new CommandPatternTest.TypeHandler("hello", node -> handled++)));
+  }
+
+  @Override
+  public RingBufferBenchmark.Handoff ringBuffer(String waitStrategy, boolean multiProducer, int capacity) {
+    RingBufferTest.WaitStrategy strategy;
+    switch( waitStrategy ) {
+      case "busySpin": strategy = new RingBufferTest.BusySpinWaitStrategy(); break;
+      case "yield": strategy = new RingBufferTest.YieldingWaitStrategy(); break;
+      case "park": strategy = new RingBufferTest.ParkingWaitStrategy(1000L); break;
+      default: throw new IllegalArgumentException("unknown wait strategy "+waitStrategy);
+    }
+    RingBufferTest.RingBuffer<ObjectNode> ring = multiProducer
+      ? RingBufferTest.RingBuffer.multiProducer(JsonNodeFactory.instance::objectNode, capacity, strategy)
+      : RingBufferTest.RingBuffer.singleProducer(JsonNodeFactory.instance::objectNode, capacity, strategy);
+    RingBufferTest.EventBus<ObjectNode> bus = new RingBufferTest.EventBus<>(ring).handleWith(chain()).start();
+
+    return new RingBufferBenchmark.Handoff() {
+      @Override
+      public void publish(String type) {
+        bus.publish(SET_TYPE, type);
+      }
+
+      @Override
+      public void close() throws InterruptedException {
+        bus.shutdown();
+      }
+    };
+  }
+
+  @Override
+  public RingBufferBenchmark.Handoff blockingQueue(int capacity) {
+    BlockingQueue<ObjectNode> queue = new LinkedBlockingQueue<>(capacity);
+    ObjectNode poison = JsonNodeFactory.instance.objectNode();
+    Predicate<ObjectNode> chain = chain();
+    Thread consumer = new Thread(() -> {
+      try {
+        for( ObjectNode node = queue.take(); node != poison; node = queue.take() ) {
+          chain.test(node);
+        }
+      } catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }, "blocking-queue");
+    consumer.setDaemon(true);
+    consumer.start();
+
+    return new RingBufferBenchmark.Handoff() {
+      @Override
+      public void publish(String type) throws InterruptedException {
+        queue.put(JsonNodeFactory.instance.objectNode().put("type", type));
+      }
+
+      @Override
+      public void close() throws InterruptedException {
+        queue.put(poison);
+        consumer.join();
+      }
+    };
+  }
+}
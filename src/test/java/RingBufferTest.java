@@ -0,0 +1,591 @@
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.github.fge.lambdas.Throwing.consumer;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * An event bus in the style of the LMAX Disruptor: producers write events into preallocated slots
+ * of a ring buffer and consumer threads, each running a chain of handlers, follow behind them,
+ * with no locks and no allocation per event.
+ */
+public class RingBufferTest {
+
+    static class LhsPadding {
+        protected long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    static class Value extends LhsPadding {
+        protected volatile long value;
+    }
+
+    static class RhsPadding extends Value {
+        protected long p9, p10, p11, p12, p13, p14, p15;
+    }
+
+    /**
+     * A sequence number padded onto a cache line of its own, so the producers' cursor and each
+     * consumer's position do not slow each other down by sharing a line.
+     */
+    public static class Sequence extends RhsPadding {
+        private static final AtomicLongFieldUpdater<Value> VALUE = AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+        public Sequence(long initial) {
+            value = initial;
+        }
+
+        public long get() {
+            return value;
+        }
+
+        /**
+         * Sets the value without a full fence; writes before it are still seen by any thread that
+         * reads the new value.
+         */
+        public void setOrdered(long newValue) {
+            VALUE.lazySet(this, newValue);
+        }
+
+        public boolean compareAndSet(long expected, long newValue) {
+            return VALUE.compareAndSet(this, expected, newValue);
+        }
+    }
+
+    /**
+     * How a consumer waits for the producers to publish the sequence it needs next.
+     */
+    public static interface WaitStrategy {
+        /**
+         * Returns the producers' cursor once it reaches sequence, or sequence - 1 if the consumer is
+         * halted while it waits.
+         */
+        public long waitFor(long sequence, Sequence cursor, BatchConsumer<?> consumer);
+    }
+
+    /**
+     * Spins on the cursor.  The lowest latency, at the cost of a whole core per consumer.
+     */
+    public static class BusySpinWaitStrategy implements WaitStrategy {
+        @Override
+        public long waitFor(long sequence, Sequence cursor, BatchConsumer<?> consumer) {
+            long available;
+            while ((available = cursor.get()) < sequence) {
+                if (!consumer.isRunning()) {
+                    return sequence - 1;
+                }
+            }
+            return available;
+        }
+    }
+
+    /**
+     * Spins for a while, then yields the core between checks.
+     */
+    public static class YieldingWaitStrategy implements WaitStrategy {
+        static final int SPIN_TRIES = 100;
+
+        @Override
+        public long waitFor(long sequence, Sequence cursor, BatchConsumer<?> consumer) {
+            long available;
+            int tries = SPIN_TRIES;
+            while ((available = cursor.get()) < sequence) {
+                if (!consumer.isRunning()) {
+                    return sequence - 1;
+                }
+                if (tries > 0) {
+                    tries--;
+                } else {
+                    Thread.yield();
+                }
+            }
+            return available;
+        }
+    }
+
+    /**
+     * Spins, then yields, then parks for parkNanos between checks.  Idle consumers cost almost
+     * nothing, and an event arriving at an idle consumer waits up to parkNanos.
+     */
+    public static class ParkingWaitStrategy implements WaitStrategy {
+        static final int SPIN_TRIES = 100;
+        static final int YIELD_TRIES = 100;
+
+        private long parkNanos;
+
+        public ParkingWaitStrategy(long parkNanos) {
+            this.parkNanos = parkNanos;
+        }
+
+        @Override
+        public long waitFor(long sequence, Sequence cursor, BatchConsumer<?> consumer) {
+            long available;
+            int tries = SPIN_TRIES + YIELD_TRIES;
+            while ((available = cursor.get()) < sequence) {
+                if (!consumer.isRunning()) {
+                    return sequence - 1;
+                }
+                if (tries > YIELD_TRIES) {
+                    tries--;
+                } else if (tries > 0) {
+                    tries--;
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(parkNanos);
+                }
+            }
+            return available;
+        }
+    }
+
+    /**
+     * A ring of preallocated events.  Producers claim a sequence with next(), fill in the event at
+     * get(sequence) and make it visible with publish(sequence).  A producer never claims a slot that
+     * a consumer has not finished with yet; it parks until the slowest consumer moves on.
+     *
+     * With a single producer the cursor is simply the last published sequence.  With several, the
+     * cursor is the last claimed sequence, claimed with compare and set, and each slot records the
+     * lap of the ring it was last published on, so consumers can find the highest sequence with no
+     * gaps before it.
+     */
+    public static class RingBuffer<E> {
+        private final Object[] entries;
+        private final int mask;
+        private final int indexShift;
+        private final boolean multiProducer;
+        private final WaitStrategy waitStrategy;
+        private final Sequence cursor = new Sequence(-1L);
+        private final AtomicIntegerArray published;
+        private volatile Sequence[] gatingSequences = new Sequence[0];
+        private final Sequence gatingCache = new Sequence(-1L);
+        private long nextValue = -1L;
+        private long cachedGating = -1L;
+
+        private RingBuffer(Supplier<E> factory, int size, boolean multiProducer, WaitStrategy waitStrategy) {
+            if (Integer.bitCount(size) != 1) {
+                throw new IllegalArgumentException("ring size must be a power of two, got " + size);
+            }
+            this.entries = new Object[size];
+            for (int i = 0; i < size; i++) {
+                entries[i] = factory.get();
+            }
+            this.mask = size - 1;
+            this.indexShift = Integer.numberOfTrailingZeros(size);
+            this.multiProducer = multiProducer;
+            this.waitStrategy = waitStrategy;
+            this.published = multiProducer ? new AtomicIntegerArray(size) : null;
+            if (multiProducer) {
+                for (int i = 0; i < size; i++) {
+                    published.set(i, -1);
+                }
+            }
+        }
+
+        public static <E> RingBuffer<E> singleProducer(Supplier<E> factory, int size, WaitStrategy waitStrategy) {
+            return new RingBuffer<>(factory, size, false, waitStrategy);
+        }
+
+        public static <E> RingBuffer<E> multiProducer(Supplier<E> factory, int size, WaitStrategy waitStrategy) {
+            return new RingBuffer<>(factory, size, true, waitStrategy);
+        }
+
+        public int size() {
+            return entries.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E get(long sequence) {
+            return (E) entries[(int) sequence & mask];
+        }
+
+        public WaitStrategy getWaitStrategy() {
+            return waitStrategy;
+        }
+
+        Sequence getCursor() {
+            return cursor;
+        }
+
+        /**
+         * Adds a consumer's sequence to those the producers may not lap.  Call before publishing.
+         */
+        synchronized void addGatingSequence(Sequence sequence) {
+            Sequence[] grown = new Sequence[gatingSequences.length + 1];
+            System.arraycopy(gatingSequences, 0, grown, 0, gatingSequences.length);
+            grown[gatingSequences.length] = sequence;
+            gatingSequences = grown;
+        }
+
+        public long next() {
+            return multiProducer ? nextMulti() : nextSingle();
+        }
+
+        private long nextSingle() {
+            long next = nextValue + 1;
+            long wrapPoint = next - entries.length;
+            if (wrapPoint > cachedGating) {
+                long minimum;
+                while (wrapPoint > (minimum = minimumSequence(nextValue))) {
+                    LockSupport.parkNanos(1L);
+                }
+                cachedGating = minimum;
+            }
+            nextValue = next;
+            return next;
+        }
+
+        private long nextMulti() {
+            while (true) {
+                long current = cursor.get();
+                long next = current + 1;
+                long wrapPoint = next - entries.length;
+                long gating = gatingCache.get();
+                if (wrapPoint > gating || gating > current) {
+                    long minimum = minimumSequence(current);
+                    if (wrapPoint > minimum) {
+                        LockSupport.parkNanos(1L);
+                        continue;
+                    }
+                    gatingCache.setOrdered(minimum);
+                } else if (cursor.compareAndSet(current, next)) {
+                    return next;
+                }
+            }
+        }
+
+        public void publish(long sequence) {
+            if (multiProducer) {
+                published.lazySet((int) sequence & mask, (int) (sequence >>> indexShift));
+            } else {
+                cursor.setOrdered(sequence);
+            }
+        }
+
+        /**
+         * Claims a slot, fills it in with translator and publishes it.
+         */
+        public <A> void publishEvent(BiConsumer<E, A> translator, A argument) {
+            long sequence = next();
+            try {
+                translator.accept(get(sequence), argument);
+            } finally {
+                publish(sequence);
+            }
+        }
+
+        /**
+         * The highest sequence from lowest to available that has been published with nothing
+         * missing before it.
+         */
+        long highestPublished(long lowest, long available) {
+            if (!multiProducer) {
+                return available;
+            }
+            for (long sequence = lowest; sequence <= available; sequence++) {
+                if (published.get((int) sequence & mask) != (int) (sequence >>> indexShift)) {
+                    return sequence - 1;
+                }
+            }
+            return available;
+        }
+
+        private long minimumSequence(long minimum) {
+            for (Sequence sequence : gatingSequences) {
+                minimum = Math.min(minimum, sequence.get());
+            }
+            return minimum;
+        }
+    }
+
+    /**
+     * Handles one event.  endOfBatch is true for the last event a consumer has available, which is
+     * the time to flush anything the handler has been accumulating.
+     */
+    public static interface EventHandler<E> {
+        public void onEvent(E event, long sequence, boolean endOfBatch) throws Exception;
+    }
+
+    /**
+     * Told about an event whose handler threw.  The event is skipped once this returns; throwing
+     * from here stops the consumer instead.
+     */
+    public static interface ExceptionHandler<E> {
+        public void handleEventException(Throwable t, long sequence, E event);
+    }
+
+    /**
+     * Follows a ring buffer on a thread of its own, handing every event to its handler.  Each wait
+     * returns everything published so far, and the whole batch is handled before the consumer's
+     * sequence is moved past it, so the consumer pays for one ordered write per batch rather than
+     * per event.  Anything else the handler throws is counted, passed to the exception handler
+     * and the event is skipped, so one bad event cannot stop the consumer and leave shutdown
+     * waiting on it.  A VirtualMachineError, such as running out of memory, is not survivable and
+     * ends the consumer's thread.  When a producer has claimed the next sequence but not published
+     * it yet, the consumer yields until it is.  The default exception handler logs a warning.
+     */
+    public static class BatchConsumer<E> implements Runnable {
+        private static final Logger log = Logger.getLogger(BatchConsumer.class.getName());
+
+        private RingBuffer<E> ring;
+        private EventHandler<? super E> handler;
+        private ExceptionHandler<? super E> exceptionHandler;
+        private Sequence sequence = new Sequence(-1L);
+        private volatile boolean running = true;
+        private LongAdder batches = new LongAdder();
+        private LongAdder failures = new LongAdder();
+
+        public BatchConsumer(RingBuffer<E> ring, EventHandler<? super E> handler) {
+            this(ring, handler, (t, sequence, event) -> log.log(Level.WARNING, "skipped event " + sequence, t));
+        }
+
+        public BatchConsumer(RingBuffer<E> ring, EventHandler<? super E> handler, ExceptionHandler<? super E> exceptionHandler) {
+            this.ring = ring;
+            this.handler = handler;
+            this.exceptionHandler = exceptionHandler;
+            ring.addGatingSequence(sequence);
+        }
+
+        @Override
+        public void run() {
+            long next = sequence.get() + 1;
+            while (running) {
+                long available = ring.highestPublished(next, ring.getWaitStrategy().waitFor(next, ring.getCursor(), this));
+                if (available < next) {
+                    if (running) {
+                        Thread.yield();
+                    }
+                    continue;
+                }
+                for (; next <= available; next++) {
+                    E event = ring.get(next);
+                    try {
+                        handler.onEvent(event, next, next == available);
+                    } catch (VirtualMachineError e) {
+                        throw e;
+                    } catch (Throwable t) {
+                        failures.increment();
+                        exceptionHandler.handleEventException(t, next, event);
+                    }
+                }
+                batches.increment();
+                sequence.setOrdered(available);
+            }
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+
+        public void halt() {
+            running = false;
+        }
+
+        public long getSequence() {
+            return sequence.get();
+        }
+
+        public long getBatchCount() {
+            return batches.sum();
+        }
+
+        public long getFailureCount() {
+            return failures.sum();
+        }
+    }
+
+    /**
+     * A ring buffer with a dedicated consumer thread for each handler.  Every consumer sees every
+     * event, so handlers that need to see events in order, such as a CommandPatternTest.Chain built
+     * from handleType, each get a thread of their own.
+     */
+    public static class EventBus<E> {
+        private RingBuffer<E> ring;
+        private List<BatchConsumer<E>> consumers = new ArrayList<>();
+        private List<Thread> threads = new ArrayList<>();
+
+        public EventBus(RingBuffer<E> ring) {
+            this.ring = ring;
+        }
+
+        public EventBus<E> handleWith(Predicate<? super E> chain) {
+            return handleWith((event, sequence, endOfBatch) -> chain.test(event));
+        }
+
+        public EventBus<E> handleWith(EventHandler<? super E> handler) {
+            consumers.add(new BatchConsumer<>(ring, handler));
+            return this;
+        }
+
+        public EventBus<E> handleWith(EventHandler<? super E> handler, ExceptionHandler<? super E> exceptionHandler) {
+            consumers.add(new BatchConsumer<>(ring, handler, exceptionHandler));
+            return this;
+        }
+
+        public EventBus<E> start() {
+            for (int i = 0; i < consumers.size(); i++) {
+                Thread thread = new Thread(consumers.get(i), "event-bus-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+            return this;
+        }
+
+        public <A> void publish(BiConsumer<E, A> translator, A argument) {
+            ring.publishEvent(translator, argument);
+        }
+
+        public List<BatchConsumer<E>> getConsumers() {
+            return consumers;
+        }
+
+        /**
+         * Waits for the consumers to handle everything published, then stops them.  Call once the
+         * producers have stopped, when every claimed sequence has been published.  A consumer whose
+         * thread has died is not waited for.
+         */
+        public void shutdown() throws InterruptedException {
+            long last = ring.getCursor().get();
+            for (int i = 0; i < consumers.size(); i++) {
+                BatchConsumer<E> consumer = consumers.get(i);
+                Thread thread = i < threads.size() ? threads.get(i) : null;
+                while (consumer.getSequence() < last && thread != null && thread.isAlive()) {
+                    Thread.yield();
+                }
+                consumer.halt();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    private static final BiConsumer<ObjectNode, String> SET_TYPE = (node, type) -> node.put("type", type);
+
+    private static int[] countTypes(EventBus<ObjectNode> bus) {
+        int[] counts = new int[2];
+        bus.handleWith(new CommandPatternTest.Chain<ObjectNode>()
+                .addChild(new CommandPatternTest.TypeHandler("hello", node -> counts[0]++))
+                .addChild(new CommandPatternTest.TypeHandler("goodbye", node -> counts[1]++)));
+        return counts;
+    }
+
+    @Test
+    public void singleProducerDeliversEveryEventInOrder() throws InterruptedException {
+        for (WaitStrategy waitStrategy : new WaitStrategy[] { new BusySpinWaitStrategy(), new YieldingWaitStrategy(), new ParkingWaitStrategy(1000L) }) {
+            RingBuffer<ObjectNode> ring = RingBuffer.singleProducer(JsonNodeFactory.instance::objectNode, 8, waitStrategy);
+            EventBus<ObjectNode> bus = new EventBus<>(ring);
+            int[] counts = countTypes(bus);
+            long[] lastSequence = { -1L };
+            boolean[] inOrder = { true };
+            bus.handleWith((event, sequence, endOfBatch) -> {
+                inOrder[0] &= sequence == lastSequence[0] + 1;
+                lastSequence[0] = sequence;
+            });
+            bus.start();
+
+            for (int i = 0; i < 10000; i++) {
+                bus.publish(SET_TYPE, i % 2 == 0 ? "hello" : "goodbye");
+            }
+            bus.shutdown();
+
+            assertThat(counts[0], equalTo(5000));
+            assertThat(counts[1], equalTo(5000));
+            assertThat(inOrder[0], equalTo(true));
+            assertThat(lastSequence[0], equalTo(9999L));
+            assertThat(bus.getConsumers().get(0).getBatchCount(), lessThanOrEqualTo(10000L));
+        }
+    }
+
+    @Test
+    public void multiProducerDeliversEveryEvent() throws InterruptedException {
+        RingBuffer<ObjectNode> ring = RingBuffer.multiProducer(JsonNodeFactory.instance::objectNode, 64, new ParkingWaitStrategy(1000L));
+        EventBus<ObjectNode> bus = new EventBus<>(ring);
+        int[] counts = countTypes(bus);
+        bus.start();
+
+        List<Thread> threadList = range(0, 4)
+                .mapToObj(t -> new Thread(() -> range(0, 2500).forEach(i -> bus.publish(SET_TYPE, t % 2 == 0 ? "hello" : "goodbye"))))
+                .collect(toList());
+
+        threadList.stream().forEach(Thread::start);
+        threadList.stream().forEach(consumer(Thread::join));
+        bus.shutdown();
+
+        assertThat(counts[0], equalTo(5000));
+        assertThat(counts[1], equalTo(5000));
+        assertThat(bus.getConsumers().get(0).getBatchCount(), greaterThan(0L));
+    }
+
+    @Test
+    public void handlerFailuresSkipTheEvent() throws InterruptedException {
+        RingBuffer<ObjectNode> ring = RingBuffer.singleProducer(JsonNodeFactory.instance::objectNode, 4, new YieldingWaitStrategy());
+        EventBus<ObjectNode> bus = new EventBus<>(ring);
+        int[] handled = { 0 };
+        List<Long> skipped = new ArrayList<>();
+        bus.handleWith((event, sequence, endOfBatch) -> {
+            if (event.get("type").asText().equals("bad")) {
+                throw new IllegalStateException("bad event");
+            }
+            if (event.get("type").asText().equals("worse")) {
+                throw new AssertionError("worse event");
+            }
+            handled[0]++;
+        }, (t, sequence, event) -> skipped.add(sequence)).start();
+
+        bus.publish(SET_TYPE, "good");
+        bus.publish(SET_TYPE, "bad");
+        bus.publish(SET_TYPE, "worse");
+        bus.publish(SET_TYPE, "good");
+        bus.shutdown();
+
+        assertThat(handled[0], equalTo(2));
+        assertThat(bus.getConsumers().get(0).getFailureCount(), equalTo(2L));
+        assertThat(skipped, contains(1L, 2L));
+    }
+
+    @Test
+    public void virtualMachineErrorsStopTheConsumer() throws InterruptedException {
+        RingBuffer<ObjectNode> ring = RingBuffer.singleProducer(JsonNodeFactory.instance::objectNode, 4, new YieldingWaitStrategy());
+        EventBus<ObjectNode> bus = new EventBus<>(ring);
+        int[] handled = { 0 };
+        bus.handleWith((event, sequence, endOfBatch) -> {
+            if (event.get("type").asText().equals("fatal")) {
+                throw new StackOverflowError("fatal event");
+            }
+            handled[0]++;
+        }, (t, sequence, event) -> { });
+        Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> { });
+        try {
+            bus.start();
+            bus.publish(SET_TYPE, "good");
+            bus.publish(SET_TYPE, "fatal");
+            bus.publish(SET_TYPE, "good");
+            bus.shutdown();
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(previous);
+        }
+
+        assertThat(handled[0], equalTo(1));
+        assertThat(bus.getConsumers().get(0).getFailureCount(), equalTo(0L));
+    }
+}
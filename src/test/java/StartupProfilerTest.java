@@ -0,0 +1,377 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provides;
+import com.google.inject.Scopes;
+import com.google.inject.Stage;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.spi.ProviderInstanceBinding;
+import com.google.inject.spi.ProvidesMethodBinding;
+import com.google.inject.spi.ProvisionListener;
+import org.junit.Test;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * Shows where the time goes while an injector starts, binding by binding.
+ */
+public class StartupProfilerTest {
+
+    /**
+     * A module that times every provision made by the injector it is installed in.  A thread local
+     * stack of the provisions in progress splits each binding's total time into the time spent in
+     * the bindings it depends on and its own, self, time.  Bindings backed by @Provides methods are
+     * reported under their method.
+     *
+     * Guice has no hook around the proxies it generates to break a cycle like
+     * GuiceTest.WhatSingletonA and WhatSingletonB, so instead each provisioned instance's fields
+     * are checked with Scopes.isCircularProxy.  The binding that was handed a proxy is flagged with
+     * the types it got proxies for; generating them is part of its self time.
+     *
+     * Only startup is profiled: the provisions made on the thread running createInjector, or
+     * injectMembers, while it runs.  Guice cannot remove a listener, so it stays installed, but
+     * whether to profile is kept per thread, and any other provision, on any thread, goes
+     * straight through without being timed or scanned.
+     */
+    public static class StartupProfiler extends AbstractModule {
+        private static final JsonFactory factory = new JsonFactory();
+
+        private Injector injector;
+        private Map<String, Profile> profiles = new ConcurrentHashMap<>();
+        private ThreadLocal<Deque<Frame>> stack = ThreadLocal.withInitial(ArrayDeque::new);
+        private volatile long createInjectorNanos;
+        private ThreadLocal<Boolean> profiling = ThreadLocal.withInitial(() -> false);
+
+        static class Frame {
+            long startTime = System.nanoTime();
+            long childNanos;
+        }
+
+        public static class Profile {
+            String name;
+            String kind;
+            LongAdder count = new LongAdder();
+            LongAdder totalNanos = new LongAdder();
+            LongAdder selfNanos = new LongAdder();
+            Set<String> circularProxies = new CopyOnWriteArraySet<>();
+
+            Profile(String name, String kind) {
+                this.name = name;
+                this.kind = kind;
+            }
+
+            public long getSelfNanos() {
+                return selfNanos.sum();
+            }
+
+            public long getTotalNanos() {
+                return totalNanos.sum();
+            }
+        }
+
+        /**
+         * Creates an injector with a profiler installed, timing the whole of createInjector too.
+         */
+        public static StartupProfiler createInjector(Stage stage, Module... modules) {
+            StartupProfiler profiler = new StartupProfiler();
+            List<Module> all = new ArrayList<>();
+            all.add(profiler);
+            for (Module module : modules) {
+                all.add(module);
+            }
+            long startTime = System.nanoTime();
+            profiler.profiling.set(true);
+            try {
+                profiler.injector = Guice.createInjector(stage, all);
+                profiler.createInjectorNanos = System.nanoTime() - startTime;
+            } finally {
+                profiler.profiling.remove();
+            }
+            return profiler;
+        }
+
+        public Injector getInjector() {
+            return injector;
+        }
+
+        @Override
+        protected void configure() {
+            bindListener(Matchers.any(), new ProvisionListener() {
+                @Override
+                public <T> void onProvision(ProvisionInvocation<T> provision) {
+                    profile(provision);
+                }
+            });
+        }
+
+        /**
+         * Injects an instance's members as part of startup, recording the call as a whole under
+         * "injectMembers(type)" as well as whatever it provisions.
+         */
+        public void injectMembers(Object instance) {
+            Deque<Frame> frames = stack.get();
+            Frame frame = new Frame();
+            frames.push(frame);
+            boolean wasProfiling = profiling.get();
+            profiling.set(true);
+            try {
+                injector.injectMembers(instance);
+            } finally {
+                profiling.set(wasProfiling);
+                record(profile("injectMembers(" + instance.getClass().getName() + ")", "members"), frames, frame);
+            }
+        }
+
+        public Map<String, Profile> getProfiles() {
+            return profiles;
+        }
+
+        private <T> void profile(ProvisionListener.ProvisionInvocation<T> provision) {
+            if (!profiling.get()) {
+                provision.provision();
+                return;
+            }
+            Deque<Frame> frames = stack.get();
+            Frame frame = new Frame();
+            frames.push(frame);
+            T instance = null;
+            try {
+                instance = provision.provision();
+            } finally {
+                Profile profile = profile(provision.getBinding());
+                record(profile, frames, frame);
+                if (instance != null) {
+                    findCircularProxies(instance, profile);
+                }
+            }
+        }
+
+        private void record(Profile profile, Deque<Frame> frames, Frame frame) {
+            long total = System.nanoTime() - frame.startTime;
+            frames.pop();
+            if (!frames.isEmpty()) {
+                frames.peek().childNanos += total;
+            }
+            profile.count.increment();
+            profile.totalNanos.add(total);
+            profile.selfNanos.add(total - frame.childNanos);
+        }
+
+        private Profile profile(Binding<?> binding) {
+            if (binding instanceof ProviderInstanceBinding) {
+                Object provider = ((ProviderInstanceBinding<?>) binding).getUserSuppliedProvider();
+                if (provider instanceof ProvidesMethodBinding) {
+                    return profile(((ProvidesMethodBinding<?>) provider).getMethod().toString(), "provides");
+                }
+            }
+            return profile(binding.getKey().toString(), "binding");
+        }
+
+        private Profile profile(String name, String kind) {
+            return profiles.computeIfAbsent(name, k -> new Profile(name, kind));
+        }
+
+        private static void findCircularProxies(Object instance, Profile profile) {
+            for (Class<?> type = instance.getClass(); type != null && !type.getName().startsWith("java."); type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        Object value = field.get(instance);
+                        if (value != null && Scopes.isCircularProxy(value)) {
+                            profile.circularProxies.add(field.getType().getName());
+                        }
+                    } catch (IllegalAccessException | RuntimeException e) {
+                        // fields we cannot read cannot hold a proxy we could report
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes the profiles as one JSON object, slowest self time first.
+         */
+        public void writeReport(OutputStream out) throws IOException {
+            List<Profile> ranked = new ArrayList<>(profiles.values());
+            ranked.sort(Comparator.comparingLong(Profile::getSelfNanos).reversed());
+
+            try (JsonGenerator generator = factory.createGenerator(out).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+                generator.writeStartObject();
+                generator.writeNumberField("createInjectorNanos", createInjectorNanos);
+                generator.writeArrayFieldStart("bindings");
+                for (Profile profile : ranked) {
+                    generator.writeStartObject();
+                    generator.writeStringField("name", profile.name);
+                    generator.writeStringField("kind", profile.kind);
+                    generator.writeNumberField("count", profile.count.sum());
+                    generator.writeNumberField("selfNanos", profile.getSelfNanos());
+                    generator.writeNumberField("totalNanos", profile.getTotalNanos());
+                    generator.writeArrayFieldStart("circularProxies");
+                    for (String proxied : profile.circularProxies) {
+                        generator.writeString(proxied);
+                    }
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+        }
+    }
+
+    @Singleton
+    public static class SlowDependency {
+        public SlowDependency() throws InterruptedException {
+            MILLISECONDS.sleep(20);
+        }
+    }
+
+    @Singleton
+    public static class FastDependent {
+        @Inject
+        public FastDependent(SlowDependency dependency) {}
+    }
+
+    /**
+     * Holds its member injection open until another thread has provisioned something.
+     */
+    public static class BlockingMembers {
+        CountDownLatch injecting = new CountDownLatch(1);
+        CountDownLatch provisioned = new CountDownLatch(1);
+
+        @Inject
+        void block() throws InterruptedException {
+            injecting.countDown();
+            provisioned.await();
+        }
+    }
+
+    public static class StartupModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            bind(GuiceTest.WhatSingletonAIf.class).to(GuiceTest.WhatSingletonA.class);
+            bind(GuiceTest.WhatSingletonBIf.class).to(GuiceTest.WhatSingletonB.class);
+            bind(FastDependent.class);
+        }
+
+        @Provides
+        @Singleton
+        @Named("A")
+        public GuiceTest.TheirClass provideA() {
+            return new GuiceTest.TheirClass(1);
+        }
+
+        @Provides
+        @Singleton
+        @Named("B")
+        public GuiceTest.TheirClass provideB() {
+            return new GuiceTest.TheirClass(2);
+        }
+    }
+
+    @Test
+    public void ranksProvisionsBySelfTime() throws IOException {
+        StartupProfiler profiler = StartupProfiler.createInjector(Stage.PRODUCTION, new StartupModule());
+
+        StartupProfiler.Profile slow = profiler.getProfiles().get(Key.get(SlowDependency.class).toString());
+        StartupProfiler.Profile dependent = profiler.getProfiles().get(Key.get(FastDependent.class).toString());
+        assertThat(slow.getSelfNanos(), greaterThanOrEqualTo(MILLISECONDS.toNanos(20)));
+        assertThat(dependent.getTotalNanos(), greaterThanOrEqualTo(MILLISECONDS.toNanos(20)));
+        assertThat(dependent.getSelfNanos(), lessThan(MILLISECONDS.toNanos(20)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        profiler.writeReport(out);
+        JsonNode report = new ObjectMapper().readTree(out.toByteArray());
+
+        assertThat(report.get("createInjectorNanos").asLong(), greaterThanOrEqualTo(MILLISECONDS.toNanos(20)));
+        JsonNode bindings = report.get("bindings");
+        assertThat(bindings.get(0).get("name").asText(), equalTo(Key.get(SlowDependency.class).toString()));
+        for (int i = 1; i < bindings.size(); i++) {
+            assertThat(bindings.get(i).get("selfNanos").asLong(), lessThanOrEqualTo(bindings.get(i - 1).get("selfNanos").asLong()));
+        }
+
+        int provides = 0;
+        int proxied = 0;
+        for (JsonNode binding : bindings) {
+            if (binding.get("kind").asText().equals("provides")) {
+                provides++;
+            }
+            proxied += binding.get("circularProxies").size();
+        }
+        assertThat(provides, equalTo(2));
+        assertThat(proxied, equalTo(1));
+
+        profiler.getInjector().getInstance(GuiceTest.Simple.class);
+        assertThat(profiler.getProfiles().containsKey(Key.get(GuiceTest.Simple.class).toString()), equalTo(false));
+    }
+
+    @Test
+    public void profilesInjectMembers() {
+        StartupProfiler profiler = StartupProfiler.createInjector(Stage.DEVELOPMENT, new StartupModule());
+
+        GuiceTest.OurClass ourClass = new GuiceTest.OurClass();
+        profiler.injectMembers(ourClass);
+
+        assertThat(ourClass.a.configNumber, equalTo(1));
+        StartupProfiler.Profile members = profiler.getProfiles().get("injectMembers(" + GuiceTest.OurClass.class.getName() + ")");
+        assertThat(members.count.sum(), equalTo(1L));
+        assertThat(members.getSelfNanos(), lessThanOrEqualTo(members.getTotalNanos()));
+    }
+
+    @Test
+    public void injectMembersOnlyProfilesItsOwnThread() throws InterruptedException {
+        StartupProfiler profiler = StartupProfiler.createInjector(Stage.DEVELOPMENT, new StartupModule());
+        BlockingMembers members = new BlockingMembers();
+        Thread other = new Thread(() -> {
+            try {
+                members.injecting.await();
+                profiler.getInjector().getInstance(GuiceTest.Simple.class);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                members.provisioned.countDown();
+            }
+        });
+        other.start();
+
+        profiler.injectMembers(members);
+        other.join();
+
+        assertThat(profiler.getProfiles().containsKey("injectMembers(" + BlockingMembers.class.getName() + ")"), equalTo(true));
+        assertThat(profiler.getProfiles().containsKey(Key.get(GuiceTest.Simple.class).toString()), equalTo(false));
+    }
+}
@@ -1,12 +1,19 @@
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import org.junit.Test;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import static com.google.common.collect.Lists.newArrayList;
@@ -30,7 +37,7 @@ public class StrategyPatternTest {
 
   public static class Context <T>{
 
-    ObjectMapper mapper = new ObjectMapper();
+    ObjectReader reader;
 
     Consumer<T> handler;
 
@@ -38,21 +45,51 @@ public class StrategyPatternTest {
 
     TypeReference<T> typeReference;
 
+    boolean elementByElement;
+
     public Context(TypeReference<T> typeReference, IOSupplier supplier, Consumer<T> handler) {
       this.handler = handler;
       this.supplier = supplier;
       this.typeReference = typeReference;
+      this.reader = ObjectReadersTest.ObjectReaders.shared().forType(typeReference);
+    }
+
+    /**
+     * A Context for a top level JSON array that binds each element to elementType as it is parsed
+     * and hands it to handler, instead of binding the whole array first, so memory stays flat
+     * however long the array is.
+     */
+    public static <E> Context<E> forEachElement(TypeReference<E> elementType, IOSupplier supplier, Consumer<E> handler) {
+      Context<E> context = new Context<>(elementType, supplier, handler);
+      context.elementByElement = true;
+      return context;
     }
 
     public void execute(){
       try( Reader in = supplier.get()) {
-        T values = mapper.readValue(in, typeReference);
+        if( elementByElement ) {
+          executeEachElement(in);
+        } else {
+          T values = reader.readValue(in);
 
-        handler.accept(values);
+          handler.accept(values);
+        }
       } catch( IOException ioe ) {
         throw new UncheckedIOException("could not handle resource.", ioe);
       }
     }
+
+    private void executeEachElement(Reader in) throws IOException {
+      try( JsonParser parser = reader.getFactory().createParser(in) ) {
+        if( parser.nextToken() != JsonToken.START_ARRAY ) {
+          throw new JsonParseException(parser, "expected a JSON array.");
+        }
+        while( parser.nextToken() != JsonToken.END_ARRAY ) {
+          T value = reader.readValue(parser);
+          handler.accept(value);
+        }
+      }
+    }
   }
   
   ObjectMapper mapper = new ObjectMapper();
@@ -94,6 +131,72 @@ public class StrategyPatternTest {
     new Context<ArrayNode>(arrayNodeRef, fromString, arrayNodeConsumer).execute();
   }
   
+  @Test
+  public void handleResourceFromStringEachElement() {
+    List<String> values = new ArrayList<>();
+    Context.forEachElement(new TypeReference<String>(){}, fromString, values::add).execute();
+    assertThat(values, equalTo(newArrayList("one", "two", "three")));
+  }
+
+  @Test
+  public void handleResourceFromClasspathEachNode() {
+    ArrayNode values = JsonNodeFactory.instance.arrayNode();
+    Context.forEachElement(new TypeReference<JsonNode>(){}, fromClassLoader, values::add).execute();
+    assertThat(values, equalTo(arrayNode("one", "two", "three")));
+  }
+
+  @Test
+  public void handleLongArrayEachElement() {
+    AtomicLong count = new AtomicLong();
+    AtomicLong sum = new AtomicLong();
+    Context.forEachElement(new TypeReference<Long>(){}, () -> new LongArrayReader(1_000_000), value -> {
+      count.incrementAndGet();
+      sum.addAndGet(value);
+    }).execute();
+    assertThat(count.get(), equalTo(1_000_000L));
+    assertThat(sum.get(), equalTo(999_999L * 1_000_000L / 2));
+  }
+
+  @Test(expected = UncheckedIOException.class)
+  public void handleEachElementRequiresArray() {
+    Context.forEachElement(new TypeReference<String>(){}, () -> new StringReader("{\"one\": 1}"), value -> {}).execute();
+  }
+
+  /**
+   * Writes the array [0,1,...,length-1] as it is read, so that it is never held in memory whole.
+   */
+  static class LongArrayReader extends Reader {
+    long length;
+    long next;
+    String pending = "[";
+
+    LongArrayReader(long length) {
+      this.length = length;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int count) {
+      int read = 0;
+      while( read < count ) {
+        if( pending.isEmpty() ) {
+          if( next > length ) {
+            break;
+          }
+          pending = next == length ? "]" : (next == 0 ? "" : ",") + next;
+          next++;
+        }
+        int n = Math.min(count - read, pending.length());
+        pending.getChars(0, n, buffer, offset + read);
+        pending = pending.substring(n);
+        read += n;
+      }
+      return read == 0 && count > 0 ? -1 : read;
+    }
+
+    @Override
+    public void close() {}
+  }
+
   private static ArrayNode arrayNode( String... values) {
     ArrayNode result = JsonNodeFactory.instance.arrayNode();
     Arrays.asList(values).stream().forEach(result::add);
@@ -1,5 +1,6 @@
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import org.junit.Test;
@@ -26,16 +27,15 @@ public class TemplateMethodTest {
 
   public static abstract class HandlerTemplate <T> {
 
-    private TypeReference<T> typeReference;
-    ObjectMapper mapper = new ObjectMapper();
+    ObjectReader reader;
 
     public HandlerTemplate(TypeReference<T> typeReference){
-      this.typeReference = typeReference;
+      this.reader = ObjectReadersTest.ObjectReaders.shared().forType(typeReference);
     }
 
     public final void execute() {
       try( Reader in = getReader()) {
-        T values = mapper.readValue(in, typeReference);
+        T values = reader.readValue(in);
         handle(values);
       } catch( IOException ioe ) {
         throw new UncheckedIOException("could not handle resource.", ioe);
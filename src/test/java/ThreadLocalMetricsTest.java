@@ -0,0 +1,247 @@
+import static com.github.fge.lambdas.Throwing.consumer;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Counters and histograms where every thread records into a buffer of its own, so recording never
+ * writes to a cache line another core is writing.  Readers merge the buffers when they read.
+ */
+public class ThreadLocalMetricsTest {
+
+  /**
+   * A registry whose counters and timers record into per thread buffers.
+   */
+  public static MethodInterceptorTest.Registry threadLocalRegistry() {
+    return new MethodInterceptorTest.Registry(ThreadLocalCounter::new, () -> new MethodInterceptorTest.Timer(new ThreadLocalHistogram()));
+  }
+
+  /**
+   * A buffer written by one thread and read by any.
+   */
+  public static abstract class ThreadBuffer {
+    private WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+
+    boolean isRetired() {
+      Thread thread = owner.get();
+      return thread == null || !thread.isAlive();
+    }
+  }
+
+  /**
+   * Hands each thread its own buffer and keeps track of all of them for readers.  Buffers whose
+   * thread has died are handed to a retire function by the first reader to find them, which folds
+   * them into a shared total, and are then dropped.
+   */
+  public static class ThreadBuffers<B extends ThreadBuffer> {
+    private Queue<B> buffers = new ConcurrentLinkedQueue<>();
+    private ThreadLocal<B> local;
+
+    public ThreadBuffers(Supplier<B> supplier) {
+      this.local = ThreadLocal.withInitial(() -> {
+        B buffer = supplier.get();
+        buffers.add(buffer);
+        return buffer;
+      });
+    }
+
+    public B local() {
+      return local.get();
+    }
+
+    /**
+     * Visits the buffers of live threads, after retiring the buffers of dead ones.
+     */
+    public void forEach(Consumer<B> live, Consumer<B> retire) {
+      for( B buffer : buffers ) {
+        if( buffer.isRetired() ) {
+          if( buffers.remove(buffer) ) {
+            retire.accept(buffer);
+          }
+        } else {
+          live.accept(buffer);
+        }
+      }
+    }
+
+    int size() {
+      return buffers.size();
+    }
+  }
+
+  /**
+   * A counter whose threads each increment a cell of their own.  Readers retire dead threads' cells
+   * while holding the retired total, so no reader can see a cell's count in neither place.
+   */
+  public static class ThreadLocalCounter implements MethodInterceptorTest.Counter {
+    static class Cell extends ThreadBuffer {
+      AtomicLong value = new AtomicLong();
+
+      void increment() {
+        value.lazySet(value.get() + 1);
+      }
+    }
+
+    ThreadBuffers<Cell> cells = new ThreadBuffers<>(Cell::new);
+    AtomicLong retired = new AtomicLong();
+
+    @Override
+    public void increment() {
+      cells.local().increment();
+    }
+
+    @Override
+    public long getValue() {
+      synchronized( retired ) {
+        long[] sum = { 0 };
+        cells.forEach(cell -> sum[0] += cell.value.get(), cell -> retired.addAndGet(cell.value.get()));
+        return sum[0] + retired.get();
+      }
+    }
+  }
+
+  /**
+   * A histogram with the same buckets as MethodInterceptorTest.Histogram, split into per thread
+   * buffers.  Each buffer allocates a power of two's sub buckets the first time its thread records a
+   * value of that magnitude, so a thread only pays for the ranges it actually sees.
+   */
+  public static class ThreadLocalHistogram implements MethodInterceptorTest.Histogram {
+    static final int CHUNK_COUNT = BUCKET_COUNT / SUB_BUCKET_COUNT;
+
+    static class Buffer extends ThreadBuffer {
+      AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<>(CHUNK_COUNT);
+      AtomicLong sum = new AtomicLong();
+      AtomicLong max = new AtomicLong();
+
+      void record( long value ) {
+        int index = MethodInterceptorTest.Histogram.bucketIndex(value);
+        AtomicLongArray chunk = chunks.get(index / SUB_BUCKET_COUNT);
+        if( chunk == null ) {
+          chunk = new AtomicLongArray(SUB_BUCKET_COUNT);
+          chunks.lazySet(index / SUB_BUCKET_COUNT, chunk);
+        }
+        int sub = index % SUB_BUCKET_COUNT;
+        chunk.lazySet(sub, chunk.get(sub) + 1);
+        sum.lazySet(sum.get() + value);
+        if( value > max.get() ) {
+          max.lazySet(value);
+        }
+      }
+
+      /**
+       * Adds this buffer to a snapshot.
+       */
+      void addTo( Snapshot into ) {
+        for( int c = 0; c < CHUNK_COUNT; c++ ) {
+          AtomicLongArray chunk = chunks.get(c);
+          if( chunk != null ) {
+            for( int i = 0; i < SUB_BUCKET_COUNT; i++ ) {
+              long n = chunk.get(i);
+              into.counts[c * SUB_BUCKET_COUNT + i] += n;
+              into.count += n;
+            }
+          }
+        }
+        into.sum += sum.get();
+        into.max = Math.max(into.max, max.get());
+      }
+    }
+
+    ThreadBuffers<Buffer> buffers = new ThreadBuffers<>(Buffer::new);
+    Snapshot retired = new Snapshot();
+
+    @Override
+    public void record( long value ) {
+      if( value < 0 ) {
+        throw new IllegalArgumentException("histogram values must be non-negative, got "+value);
+      }
+      buffers.local().record(value);
+    }
+
+    @Override
+    public Snapshot snapshot( Snapshot into ) {
+      synchronized( retired ) {
+        System.arraycopy(retired.counts, 0, into.counts, 0, BUCKET_COUNT);
+        into.count = retired.count;
+        into.sum = retired.sum;
+        into.max = retired.max;
+        buffers.forEach(buffer -> buffer.addTo(into), buffer -> {
+          buffer.addTo(retired);
+          buffer.addTo(into);
+        });
+      }
+      return into;
+    }
+  }
+
+  @Test
+  public void threadLocalRegistryCounts() throws Exception {
+    MethodInterceptorTest.Registry registry = threadLocalRegistry();
+    Injector injector = Guice.createInjector(new MethodInterceptorTest.TrackedModule(registry, MethodInterceptorTest.SampledMethods.class));
+    Method fastMethod = MethodInterceptorTest.SampledMethods.class.getMethod("fastMethod");
+    MethodInterceptorTest.SampledMethods m = injector.getInstance(MethodInterceptorTest.SampledMethods.class);
+
+    int loops = 10000;
+    int threadCount = 16;
+    Runnable r = () -> range(0, loops).forEach(i -> m.fastMethod());
+
+    List<Thread> threadList = range(0, threadCount)
+      .mapToObj(i -> new Thread(r))
+      .collect(toList());
+
+    threadList.stream().forEach(Thread::start);
+    threadList.stream().forEach(consumer(Thread::join));
+
+    assertThat(registry.getCounter(fastMethod).get().getValue(), equalTo((long)loops*threadCount));
+  }
+
+  @Test
+  public void retiresBuffersOfDeadThreads() throws Exception {
+    ThreadLocalCounter counter = new ThreadLocalCounter();
+    ThreadLocalHistogram histogram = new ThreadLocalHistogram();
+
+    List<Thread> threadList = range(0, 8)
+      .mapToObj(t -> new Thread(() -> range(0, 1000).forEach(i -> {
+        counter.increment();
+        histogram.record(i);
+      })))
+      .collect(toList());
+
+    threadList.stream().forEach(Thread::start);
+    threadList.stream().forEach(consumer(Thread::join));
+    counter.increment();
+    histogram.record(5000);
+
+    assertThat(counter.cells.size(), equalTo(9));
+    assertThat(counter.getValue(), equalTo(8001L));
+    assertThat(counter.cells.size(), equalTo(1));
+    assertThat(counter.getValue(), equalTo(8001L));
+
+    assertThat(histogram.buffers.size(), equalTo(9));
+    assertThat(histogram.getCount(), equalTo(8001L));
+    assertThat(histogram.buffers.size(), equalTo(1));
+    assertThat(histogram.getCount(), equalTo(8001L));
+    assertThat(histogram.getMax(), equalTo(5000L));
+    assertThat(histogram.getValueAtPercentile(50.0d), equalTo(new MethodInterceptorTest.AtomicHistogram() {{
+      range(0, 8).forEach(t -> range(0, 1000).forEach(this::record));
+      record(5000);
+    }}.getValueAtPercentile(50.0d)));
+  }
+}
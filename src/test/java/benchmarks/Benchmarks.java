@@ -0,0 +1,55 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks in this package.  JMH will not generate code for classes in the default
+ * package, where the rest of the tests live, and code in a named package cannot refer to classes in
+ * the default package at all.  So each benchmark here reaches its subject through a small interface
+ * that a default package fixture, named after the benchmark, implements, and fixture() loads that
+ * class by name.
+ */
+public class Benchmarks {
+
+  /** The thread counts each benchmark is run at. */
+  static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+  /**
+   * Runs the named benchmark class at each of THREADS, with the GC profiler, so the results report
+   * both ns/op and gc.alloc.rate.norm, the bytes allocated per op.  Counts past the number of
+   * processors are still run, since contention under oversubscription is part of what is measured,
+   * but are announced as oversubscribed so their results are not read as parallel speedup.  The
+   * benchmark.jvmArgs system property is passed on to the forked JVMs.
+   */
+  public static void main(String[] args) throws RunnerException {
+    String benchmark = Benchmarks.class.getPackage().getName() + "." + args[0];
+    String[] jvmArgs = System.getProperty("benchmark.jvmArgs", "").trim().split("\\s+");
+    int processors = Runtime.getRuntime().availableProcessors();
+    for( int threads : THREADS ) {
+      if( threads > processors ) {
+        System.out.println("# "+threads+" threads on "+processors+" processors: oversubscribed");
+      }
+      new Runner(new OptionsBuilder()
+        .include(benchmark + "\\.")
+        .threads(threads)
+        .jvmArgsAppend(jvmArgs[0].isEmpty() ? new String[0] : jvmArgs)
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+    }
+  }
+
+  /**
+   * Creates the default package class with the given name, which must implement type and have a
+   * public no argument constructor.
+   */
+  public static <T> T fixture(String className, Class<T> type) {
+    try {
+      return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+    } catch( ReflectiveOperationException e ) {
+      throw new IllegalStateException("could not create benchmark fixture "+className, e);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures creating and executing a StrategyPatternTest.Context or TemplateMethodTest.HandlerTemplate
+ * for every request, binding a small JSON array to a List&lt;String&gt;.  The newMapper benchmark
+ * does what both did before they shared ObjectReadersTest.ObjectReaders, a new ObjectMapper per
+ * call.  Each thread has a fixture of its own, since the fixture keeps the last bound size.
+ * Run with
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=BindingBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@Fork(1)
+public class BindingBenchmark {
+
+  /**
+   * Each method binds one request and returns the number of values bound.
+   */
+  public static interface Fixture {
+    /** A new ObjectMapper reads the request. */
+    public int newMapper();
+    /** A new Context reads the request with the shared reader. */
+    public int context();
+    /** A new HandlerTemplate reads the request with the shared reader. */
+    public int handlerTemplate();
+  }
+
+  Fixture fixture;
+
+  @Setup
+  public void setup() {
+    fixture = Benchmarks.fixture("BindingBenchmarkFixture", Fixture.class);
+  }
+
+  @Benchmark
+  public int newMapper() {
+    return fixture.newMapper();
+  }
+
+  @Benchmark
+  public int context() {
+    return fixture.context();
+  }
+
+  @Benchmark
+  public int handlerTemplate() {
+    return fixture.handlerTemplate();
+  }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares MethodInterceptorTest.AdderCounter with the single AtomicInteger it replaced.  Every
+ * thread increments the same counter, so the runs at more threads show how each one scales under
+ * contention.  Run with
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=CounterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@Fork(1)
+public class CounterBenchmark {
+
+  /**
+   * Builds the counters being compared.
+   */
+  public static interface Fixture {
+    /** Increments a new MethodInterceptorTest.AdderCounter. */
+    public Runnable adderCounter();
+  }
+
+  AtomicInteger atomic = new AtomicInteger();
+  Runnable adderCounter;
+
+  @Setup
+  public void setup() {
+    adderCounter = Benchmarks.fixture("CounterBenchmarkFixture", Fixture.class).adderCounter();
+  }
+
+  @Benchmark
+  public int atomicInteger() {
+    return atomic.incrementAndGet();
+  }
+
+  @Benchmark
+  public void adderCounter() {
+    adderCounter.run();
+  }
+}
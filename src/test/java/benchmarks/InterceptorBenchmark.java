@@ -0,0 +1,106 @@
+package benchmarks;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what Guice AOP and the Registry cost per call, from a direct call up to the interceptor
+ * setups used in MethodInterceptorTest.  Run with
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=InterceptorBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@Fork(1)
+public class InterceptorBenchmark {
+
+  /**
+   * The methods being called, shaped like MethodInterceptorTest.ExampleMethods.
+   */
+  public static interface Calls {
+    public int plain();
+    public int counted();
+    public int timed();
+    public int both();
+  }
+
+  /**
+   * Builds one Calls instance per interceptor setup.
+   */
+  public static interface Fixture {
+    /** A plain instance, with no Guice involved. */
+    public Calls direct();
+    /** A Guice proxy whose only interceptor calls proceed(). */
+    public Calls proxied();
+    /** Counting bound to @Count and timing bound to @Timed, as in multipleInterceptors. */
+    public Calls annotated();
+    /** Counting and timing bound to every method, as in addingAnnotations. */
+    public Calls any();
+    /** MethodInterceptorTest.TrackedModule. */
+    public Calls tracked();
+  }
+
+  Calls direct;
+  Calls proxied;
+  Calls annotated;
+  Calls any;
+  Calls tracked;
+
+  @Setup
+  public void setup() {
+    Fixture fixture = Benchmarks.fixture("InterceptorBenchmarkFixture", Fixture.class);
+    direct = fixture.direct();
+    proxied = fixture.proxied();
+    annotated = fixture.annotated();
+    any = fixture.any();
+    tracked = fixture.tracked();
+  }
+
+  @Benchmark
+  public int direct() {
+    return direct.both();
+  }
+
+  @Benchmark
+  public int proxied() {
+    return proxied.plain();
+  }
+
+  @Benchmark
+  public int countOnly() {
+    return annotated.counted();
+  }
+
+  @Benchmark
+  public int timedOnly() {
+    return annotated.timed();
+  }
+
+  @Benchmark
+  public int countAndTimed() {
+    return annotated.both();
+  }
+
+  @Benchmark
+  public int anyDoubleInterceptor() {
+    return any.plain();
+  }
+
+  @Benchmark
+  public int trackedCountAndTimed() {
+    return tracked.both();
+  }
+}
@@ -0,0 +1,88 @@
+package benchmarks;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares injector.getInstance() with the handles from ProviderHandlesTest for GuiceTest.Simple,
+ * which is unscoped, and GuiceTest.SimpleSingleton.  Run with
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=ProviderBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@Fork(1)
+public class ProviderBenchmark {
+
+  /**
+   * Builds one way of getting each type.
+   */
+  public static interface Fixture {
+    /** Calls injector.getInstance(Simple.class). */
+    public Supplier<?> getInstanceSimple();
+    /** Calls the provider from injector.getProvider(Simple.class), resolved once. */
+    public Supplier<?> providerSimple();
+    /** Calls the ProviderHandles handle for Simple, a generated constructor. */
+    public Supplier<?> handleSimple();
+    /** Calls injector.getInstance(SimpleSingleton.class). */
+    public Supplier<?> getInstanceSingleton();
+    /** Calls the ProviderHandles handle for SimpleSingleton. */
+    public Supplier<?> handleSingleton();
+  }
+
+  Supplier<?> getInstanceSimple;
+  Supplier<?> providerSimple;
+  Supplier<?> handleSimple;
+  Supplier<?> getInstanceSingleton;
+  Supplier<?> handleSingleton;
+
+  @Setup
+  public void setup() {
+    Fixture fixture = Benchmarks.fixture("ProviderBenchmarkFixture", Fixture.class);
+    getInstanceSimple = fixture.getInstanceSimple();
+    providerSimple = fixture.providerSimple();
+    handleSimple = fixture.handleSimple();
+    getInstanceSingleton = fixture.getInstanceSingleton();
+    handleSingleton = fixture.handleSingleton();
+  }
+
+  @Benchmark
+  public Object getInstanceSimple() {
+    return getInstanceSimple.get();
+  }
+
+  @Benchmark
+  public Object providerSimple() {
+    return providerSimple.get();
+  }
+
+  @Benchmark
+  public Object handleSimple() {
+    return handleSimple.get();
+  }
+
+  @Benchmark
+  public Object getInstanceSingleton() {
+    return getInstanceSingleton.get();
+  }
+
+  @Benchmark
+  public Object handleSingleton() {
+    return handleSingleton.get();
+  }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Measures how many events per second producers can hand to a consumer thread running a
+ * CommandPatternTest.Chain, through RingBufferTest.EventBus and through a LinkedBlockingQueue of
+ * the same capacity.  With one benchmark thread the ring buffer uses a single producer, otherwise
+ * several.  Run with
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=RingBufferBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@Fork(1)
+public class RingBufferBenchmark {
+  public static final int CAPACITY = 1024;
+
+  /**
+   * Hands events to a consumer thread.
+   */
+  public static interface Handoff {
+    public void publish(String type) throws InterruptedException;
+    public void close() throws InterruptedException;
+  }
+
+  public static interface Fixture {
+    /**
+     * An EventBus with the named wait strategy, busySpin, yield or park.
+     */
+    public Handoff ringBuffer(String waitStrategy, boolean multiProducer, int capacity);
+    /** A consumer thread taking events from a LinkedBlockingQueue. */
+    public Handoff blockingQueue(int capacity);
+  }
+
+  @Param({ "ringBuffer:busySpin", "ringBuffer:yield", "ringBuffer:park", "blockingQueue" })
+  String handoffType;
+
+  Handoff handoff;
+
+  @Setup
+  public void setup(BenchmarkParams params) {
+    Fixture fixture = Benchmarks.fixture("RingBufferBenchmarkFixture", Fixture.class);
+    if( handoffType.startsWith("ringBuffer:") ) {
+      handoff = fixture.ringBuffer(handoffType.substring("ringBuffer:".length()), params.getThreads() > 1, CAPACITY);
+    } else {
+      handoff = fixture.blockingQueue(CAPACITY);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    handoff.close();
+  }
+
+  @Benchmark
+  public void publish() throws InterruptedException {
+    handoff.publish("hello");
+  }
+}